@@ -0,0 +1,96 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the operations every search node does: generating the children of a state,
+ * evaluating a state and ordering the children, each from the initial position of every scenario.
+ * evaluateFeature evaluates with one feature at a time, so the cost of each feature per evaluated
+ * node can be compared.  Run with -prof gc for the bytes allocated per operation.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmarks
+{
+	@Param({ "data/Game1fv1a.xml", "data/Game2fv2a.xml", "data/Game2fv1a_Obstacles.xml",
+		"data/Game2fv2a_Obstacles.xml", "saves/state0.SRTSsav" })
+	public String scenario;
+
+	private GameState root;
+	private MinimaxAlphaBeta orderingAgent;
+	private List<GameStateChild> children;	// The root's children, for ordering
+
+	/**
+	 * The root of the scenario evaluated with only one feature, weighted 1.
+	 */
+	@State(Scope.Benchmark)
+	public static class FeatureRoot
+	{
+		@Param
+		public EvaluationFeature feature;	// Every feature when -p feature does not pick some
+
+		private GameState root;
+
+		@Setup
+		public void loadScenario(HotPathBenchmarks benchmarks) throws Exception
+		{
+			double[] weights = new double[EvaluationFeature.values().length];
+			weights[feature.ordinal()] = 1;
+			root = new GameState(ScenarioLoader.loadStateView(benchmarks.scenario), new LinearEvaluator(weights));
+		}
+	}
+
+	@Setup
+	public void loadScenario() throws Exception
+	{
+		root = new GameState(ScenarioLoader.loadStateView(scenario));
+		orderingAgent = new MinimaxAlphaBeta(0, new String[] { "1", "stats=false" });
+		children = root.getChildren();
+	}
+
+	@Benchmark
+	public List<GameStateChild> getChildren()
+	{
+		return root.getChildren();
+	}
+
+	@Benchmark
+	public double calculateUtility()
+	{
+		root.calculateUtility();
+		return root.getUtility();
+	}
+
+	@Benchmark
+	public double evaluateFeature(FeatureRoot featureRoot)
+	{
+		featureRoot.root.calculateUtility();
+		return featureRoot.root.getUtility();
+	}
+
+	@Benchmark
+	public List<GameStateChild> orderChildrenWithHeuristics()
+	{
+		return orderingAgent.orderChildrenWithHeuristics(children);
+	}
+}
@@ -0,0 +1,90 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of a fixed depth alpha-beta search from the initial position of every scenario, at
+ * depths 1 to 6.  It reports searches per second and, through the nodes counter, nodes per second.
+ * Run with -prof gc for the bytes allocated per search, and with -bm avgt -tu us for the time per search.
+ *
+ * Every search starts from empty tables, the way the first turn of a game does.  The tables are
+ * cleared before each search rather than a new agent being created, so neither the clearing nor an
+ * agent's allocation is measured.  The transposition table is kept to TT_MEGABYTES instead of the
+ * agent's default 16, so clearing it between searches is a sixteenth of the work.  Collisions in the
+ * smaller table cost the depth 6 searches about 3% more nodes.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmarks
+{
+	@Param({ "data/Game1fv1a.xml", "data/Game2fv2a.xml", "data/Game2fv1a_Obstacles.xml",
+		"data/Game2fv2a_Obstacles.xml", "saves/state0.SRTSsav" })
+	public String scenario;
+
+	@Param({ "1", "2", "3", "4", "5", "6" })
+	public int depth;
+
+	private static final String TT_MEGABYTES = "1";
+
+	private GameStateChild root;
+	private MinimaxAlphaBeta agent;
+
+	/**
+	 * The nodes each search visits, which JMH reports as a rate next to the searches.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class NodeCounter
+	{
+		public long nodes;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			nodes = 0;
+		}
+	}
+
+	@Setup
+	public void loadScenario() throws Exception
+	{
+		root = new GameStateChild(null, new GameState(ScenarioLoader.loadStateView(scenario)));
+		agent = new MinimaxAlphaBeta(0, new String[] { Integer.toString(depth), "stats=false", "ttMB=" + TT_MEGABYTES });
+	}
+
+	@Setup(Level.Invocation)
+	public void clearTables()
+	{
+		agent.clearSearchTables();
+	}
+
+	@Benchmark
+	public double alphaBetaSearch(NodeCounter counter)
+	{
+		long nodesBefore = agent.getStatistics().getNodes();
+		GameStateChild result = agent.alphaBetaSearch(root, depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+		counter.nodes += agent.getStatistics().getNodes() - nodesBefore;
+		return result.state.getUtility();
+	}
+}
@@ -0,0 +1,464 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.util.config.xml.XmlAgentParameters;
+import edu.cwru.sepia.util.config.xml.XmlConfiguration;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays many headless episodes of MinimaxAlphaBeta against the archer agent, in parallel over every
+ * bundled game configuration, and reports how the footmen did: the win rate, the turns a win took, the
+ * percentiles of the time the agent took per turn and the episodes played per minute.
+ *
+ * Every worker thread builds its own model, environment and archer agent for each map the first time
+ * it plays it and plays all of its episodes of that map with them, the way SEPIA's
+ * SimpleModelEpisodicRunner plays several episodes.  The footmen get a new agent for every episode, so
+ * nothing one episode's search learned carries over into the next.  The only thing workers share is
+ * DistanceField's cache, which keeps one read-only field for each map, so a worker switching between
+ * maps does not rebuild them on every turn.  SEPIA starts a thread per agent for every environment that
+ * never finishes, which is why environments are not thrown away after one episode; the workers are
+ * daemon threads so the agent threads do not keep the JVM alive either.  Episodes that reach the step
+ * limit with both sides alive are counted as draws.  What the workers and the agent threads SEPIA
+ * starts from them print is discarded while the batch runs, any other thread's output still shows.
+ *
+ * Usage: BatchRunner [episodesPerMap] [threads] [stepLimit] [agent argument ...]
+ * The defaults are 10 episodes, one thread per core and 1000 steps; a step limit of 0 keeps the
+ * configuration's, which lets a stalled episode run for 100000 steps.  Agent arguments replace the
+ * footman agent's arguments in the configuration, e.g. "4 qPlys=2", and trace and stats are off unless
+ * they are given.  The argument agent=<class> plays the footmen with another agent class of this package
+ * or a fully qualified one, e.g. "8 timeMs=50 agent=MonteCarloTreeSearch", to compare it with
+ * MinimaxAlphaBeta under the same arguments.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class BatchRunner
+{
+	private static final String[] DEFAULT_CONFIGS = { "data/GameConfig1fv1a.xml", "data/GameConfig2fv2a.xml",
+		"data/GameConfig2fv1a_Obstacles.xml", "data/GameConfig2fv2a_Obstacles.xml" };
+
+	private static final String FOOTMAN_AGENT = MinimaxAlphaBeta.class.getName();
+	private static final String VISUAL_AGENT = "edu.cwru.sepia.agent.visual.VisualAgent";
+	
+	// The workers, and the agent threads SEPIA starts from them, which join their group
+	private static final ThreadGroup BATCH_THREADS = new ThreadGroup("batch");
+
+	public static void main(String[] args) throws Exception
+	{
+		int episodesPerMap = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int stepLimit = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		String[] agentArgs = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : null;
+
+		final List<Scenario> scenarios = new ArrayList<Scenario>();
+		for (String config : DEFAULT_CONFIGS)
+		{
+			scenarios.add(new Scenario(config, agentArgs, stepLimit));
+		}
+
+		// Hand the episodes out round robin over the maps, so every map is covered if the batch is cut short
+		final int totalEpisodes = episodesPerMap * scenarios.size();
+		final AtomicInteger nextEpisode = new AtomicInteger();
+		final EpisodeResult[] results = new EpisodeResult[totalEpisodes];
+
+		final PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+				if (!isBatchThread())
+				{
+					out.write(b);
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+				if (!isBatchThread())
+				{
+					out.write(b, off, len);
+				}
+			}
+
+			@Override
+			public void flush()
+			{
+				out.flush();
+			}
+		}, true));
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(BATCH_THREADS, task);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try
+		{
+			List<Future<Void>> workers = new ArrayList<Future<Void>>();
+			for (int i = 0; i < threads; i++)
+			{
+				workers.add(pool.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						// This worker's own environments, one per map
+						Map<Scenario, EpisodeRunner> runners = new HashMap<Scenario, EpisodeRunner>();
+						for (int episode = nextEpisode.getAndIncrement(); episode < totalEpisodes; episode = nextEpisode.getAndIncrement())
+						{
+							Scenario scenario = scenarios.get(episode % scenarios.size());
+							EpisodeRunner runner = runners.get(scenario);
+							if (runner == null)
+							{
+								runner = new EpisodeRunner(scenario, episode);
+								runners.put(scenario, runner);
+							}
+							results[episode] = runner.play();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> worker : workers)
+			{
+				worker.get();
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+			System.setOut(out);
+		}
+		double minutes = (System.nanoTime() - start) / 6e10;
+
+		System.out.println(String.format("%d episodes on %d threads in %.1f s, %.1f episodes/minute",
+				totalEpisodes, threads, minutes * 60, totalEpisodes / minutes));
+		System.out.println(String.format("%-36s %8s %8s %8s %10s %10s %10s %10s", "configuration", "episodes", "win %", "draws",
+				"win steps", "p50 ms", "p99 ms", "max ms"));
+		for (int i = 0; i < scenarios.size(); i++)
+		{
+			List<EpisodeResult> scenarioResults = new ArrayList<EpisodeResult>();
+			for (int episode = i; episode < totalEpisodes; episode += scenarios.size())
+			{
+				scenarioResults.add(results[episode]);
+			}
+			printSummary(scenarios.get(i).config, scenarioResults);
+		}
+		printSummary("all", Arrays.asList(results));
+	}
+
+	/**
+	 * @return True if the calling thread is a worker or one of the agent threads a worker started
+	 */
+	private static boolean isBatchThread()
+	{
+		ThreadGroup group = Thread.currentThread().getThreadGroup();
+		return group != null && BATCH_THREADS.parentOf(group);
+	}
+
+	/**
+	 * Print one line of the report: the episodes, the footmen's win rate, the draws, the average steps a
+	 * win took and the percentiles of the footman agent's time per turn.
+	 */
+	private static void printSummary(String name, List<EpisodeResult> results)
+	{
+		int wins = 0;
+		int draws = 0;
+		long winSteps = 0;
+		int turns = 0;
+		for (EpisodeResult result : results)
+		{
+			wins += result.footmenWon ? 1 : 0;
+			draws += result.draw ? 1 : 0;
+			winSteps += result.footmenWon ? result.steps : 0;
+			turns += result.turnNanos.length;
+		}
+
+		long[] turnNanos = new long[turns];
+		int index = 0;
+		for (EpisodeResult result : results)
+		{
+			System.arraycopy(result.turnNanos, 0, turnNanos, index, result.turnNanos.length);
+			index += result.turnNanos.length;
+		}
+		Arrays.sort(turnNanos);
+
+		System.out.println(String.format("%-36s %8d %8.1f %8d %10s %10.2f %10.2f %10.2f", name, results.size(),
+				100.0 * wins / results.size(), draws, wins == 0 ? "-" : String.format("%.1f", (double) winSteps / wins),
+				getPercentile(turnNanos, 50) / 1e6, getPercentile(turnNanos, 99) / 1e6,
+				turnNanos.length == 0 ? 0 : turnNanos[turnNanos.length - 1] / 1e6));
+	}
+
+	/**
+	 * @param sorted Values in ascending order
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The nearest rank percentile of the values, or 0 if there are none
+	 */
+	private static long getPercentile(long[] sorted, double percentile)
+	{
+		if (sorted.length == 0)
+		{
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	/**
+	 * One game configuration: its map, its players and the model parameters to play it with.
+	 */
+	private static class Scenario
+	{
+		final String config;	// The path of the configuration, for the report
+		final String map;	// The path of the map every episode starts from
+		final List<XmlAgentParameters> players;	// Every player but the visual agent
+		final String[] footmanArgs;	// The arguments of the MinimaxAlphaBeta player
+		final String footmanClass;	// The agent class that plays the footmen in its place
+		final Configuration modelConfiguration;
+
+		Scenario(String config, String[] agentArgs, int stepLimit) throws Exception
+		{
+			XmlConfiguration xmlConfiguration = ScenarioLoader.loadConfiguration(config);
+			this.config = config;
+			this.map = xmlConfiguration.getMap();
+
+			this.players = new ArrayList<XmlAgentParameters>();
+			List<String> footmanArgs = null;
+			for (XmlAgentParameters player : xmlConfiguration.getPlayer())
+			{
+				String className = player.getAgentClass().getClassName();
+				if (className.equals(FOOTMAN_AGENT))
+				{
+					footmanArgs = new ArrayList<String>(agentArgs != null ? Arrays.asList(agentArgs) : player.getAgentClass().getArgument());
+				}
+				if (!className.equals(VISUAL_AGENT))
+				{
+					this.players.add(player);
+				}
+			}
+			if (footmanArgs == null)
+			{
+				throw new IllegalArgumentException(config + " has no " + FOOTMAN_AGENT + " player");
+			}
+
+			// The first value of a setting wins, so these only apply if the arguments leave them out
+			footmanArgs.add("trace=false");
+			footmanArgs.add("stats=false");
+			this.footmanArgs = footmanArgs.toArray(new String[footmanArgs.size()]);
+
+			String footmanClass = MinimaxAlphaBeta.getOption(this.footmanArgs, "agent", FOOTMAN_AGENT);
+			this.footmanClass = footmanClass.indexOf('.') < 0 ? BatchRunner.class.getPackage().getName() + "." + footmanClass : footmanClass;
+
+			this.modelConfiguration = new Configuration();
+			this.modelConfiguration.put("environment.model.Conquest", xmlConfiguration.getModelParameters().isConquest());
+			this.modelConfiguration.put("environment.model.Midas", xmlConfiguration.getModelParameters().isMidas());
+			this.modelConfiguration.put("environment.model.ManifestDestiny", xmlConfiguration.getModelParameters().isManifestDestiny());
+			this.modelConfiguration.put("environment.model.TimeLimit", stepLimit > 0 ? stepLimit : xmlConfiguration.getModelParameters().getTimeLimit());
+		}
+	}
+
+	/**
+	 * One worker's environment for one scenario, which plays all of the worker's episodes of it.
+	 */
+	private static class EpisodeRunner
+	{
+		private final Scenario scenario;
+		private final SimpleModel model;
+		private final Environment environment;
+		private final TimedAgent footmen;
+
+		/**
+		 * @param scenario The scenario to play
+		 * @param seed The seed of the model
+		 */
+		EpisodeRunner(Scenario scenario, int seed) throws Exception
+		{
+			this.scenario = scenario;
+			TimedAgent footmen = null;
+			Agent[] agents = new Agent[scenario.players.size()];
+			for (int i = 0; i < agents.length; i++)
+			{
+				XmlAgentParameters player = scenario.players.get(i);
+				String className = player.getAgentClass().getClassName();
+				if (className.equals(FOOTMAN_AGENT))
+				{
+					footmen = new TimedAgent(player.getId());
+					agents[i] = footmen;
+				}
+				else
+				{
+					List<String> arguments = player.getAgentClass().getArgument();
+					agents[i] = createAgent(className, player.getId(), arguments.toArray(new String[arguments.size()]));
+				}
+			}
+			this.footmen = footmen;
+
+			// Every episode starts from this worker's own copy of the map
+			StateCreator creator = new XmlStateCreator(ScenarioLoader.loadXmlState(scenario.map));
+			this.model = new SimpleModel(creator.createState(), seed, creator, scenario.modelConfiguration);
+			this.environment = new Environment(agents, this.model, seed);
+		}
+
+		/**
+		 * Create an agent the way SEPIA does, through its (int playerNumber, String[] arguments) constructor.
+		 */
+		private static Agent createAgent(String className, int playerNumber, String[] arguments) throws Exception
+		{
+			return (Agent) Class.forName(className).getConstructor(int.class, String[].class).newInstance(playerNumber, arguments);
+		}
+
+		/**
+		 * Play one episode on the calling thread.
+		 * @return How the episode went
+		 */
+		EpisodeResult play() throws Exception
+		{
+			this.footmen.startEpisode(createAgent(this.scenario.footmanClass, this.footmen.getPlayerNumber(), this.scenario.footmanArgs));
+			this.environment.runEpisode();
+
+			// The footmen are player 0 and the archers player 1
+			State.StateView finalState = this.model.getState().getView(Agent.OBSERVER_ID);
+			boolean footmenAlive = hasLivingUnits(finalState, this.footmen.getPlayerNumber());
+			boolean archersAlive = hasLivingUnits(finalState, 1 - this.footmen.getPlayerNumber());
+			return new EpisodeResult(footmenAlive && !archersAlive, footmenAlive && archersAlive,
+					this.environment.getStepNumber(), this.footmen.getTurnNanos());
+		}
+
+		private static boolean hasLivingUnits(State.StateView state, int player)
+		{
+			for (Unit.UnitView unit : state.getUnits(player))
+			{
+				if (unit.getHP() > 0)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * How one episode went.
+	 */
+	private static class EpisodeResult
+	{
+		final boolean footmenWon;
+		final boolean draw;	// The step limit was reached with both sides alive
+		final int steps;
+		final long[] turnNanos;	// The footman agent's time on each of its turns
+
+		EpisodeResult(boolean footmenWon, boolean draw, int steps, long[] turnNanos)
+		{
+			this.footmenWon = footmenWon;
+			this.draw = draw;
+			this.steps = steps;
+			this.turnNanos = turnNanos;
+		}
+	}
+
+	/**
+	 * Passes every call on to another agent and times its turns.  The environment keeps this agent
+	 * for every episode, the agent it passes the calls on to can be replaced between them.
+	 */
+	private static class TimedAgent extends Agent
+	{
+		private Agent agent;
+		private long[] turnNanos = new long[64];
+		private int turns;
+
+		TimedAgent(int playerNumber)
+		{
+			super(playerNumber);
+		}
+
+		@Override
+		public Map<Integer, Action> initialStep(State.StateView state, History.HistoryView history)
+		{
+			long start = System.nanoTime();
+			Map<Integer, Action> actions = this.agent.initialStep(state, history);
+			recordTurn(System.nanoTime() - start);
+			return actions;
+		}
+
+		@Override
+		public Map<Integer, Action> middleStep(State.StateView state, History.HistoryView history)
+		{
+			long start = System.nanoTime();
+			Map<Integer, Action> actions = this.agent.middleStep(state, history);
+			recordTurn(System.nanoTime() - start);
+			return actions;
+		}
+
+		@Override
+		public void terminalStep(State.StateView state, History.HistoryView history)
+		{
+			this.agent.terminalStep(state, history);
+		}
+
+		@Override
+		public void savePlayerData(OutputStream os)
+		{
+			this.agent.savePlayerData(os);
+		}
+
+		@Override
+		public void loadPlayerData(InputStream is)
+		{
+			this.agent.loadPlayerData(is);
+		}
+
+		private void recordTurn(long nanos)
+		{
+			if (this.turns == this.turnNanos.length)
+			{
+				this.turnNanos = Arrays.copyOf(this.turnNanos, this.turns * 2);
+			}
+			this.turnNanos[this.turns++] = nanos;
+		}
+
+		/**
+		 * Pass the calls of the next episode on to a new agent, and forget the last episode's turns.
+		 */
+		void startEpisode(Agent agent)
+		{
+			this.agent = agent;
+			this.turns = 0;
+		}
+
+		long[] getTurnNanos()
+		{
+			return Arrays.copyOf(this.turnNanos, this.turns);
+		}
+	}
+}
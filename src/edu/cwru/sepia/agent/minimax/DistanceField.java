@@ -0,0 +1,235 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.util.Direction;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * True walking distances between every pair of cells on a map, taking obstacles into account.
+ * The distances are found with one breadth first search per cell, moving in the cardinal directions
+ * the same way the footmen do, and are stored in one flat array so a lookup is a single index.
+ *
+ * The field also holds the blocked cells as a bitset and, for every cell, the set of directions a unit
+ * can step in without walking into an obstacle or off the map, so move generation only tests bits.
+ *
+ * The grid has one extra row and column past the map extents.  Those cells, like the obstacles, are
+ * blocked and unreachable.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class DistanceField 
+{
+	// The distance between cells with no path between them (or to and from blocked cells)
+	public static final int UNREACHABLE = Short.MAX_VALUE;
+	
+	// The directions units step in.  Bit d of a cell's legal directions stands for DIRECTIONS[d].
+	public static final Direction[] DIRECTIONS = { Direction.NORTH, Direction.SOUTH, Direction.EAST, Direction.WEST };
+	
+	// The fields of the maps seen so far.  The obstacles never change during an episode, so every turn
+	// after the first reuses its map's field, even while episodes on other maps run on other threads.
+	private static final ConcurrentMap<MapKey, DistanceField> FIELDS = new ConcurrentHashMap<MapKey, DistanceField>();
+	private static final int MAX_CACHED_FIELDS = 16;	// Past this many maps the cache starts over, which bounds its memory
+	
+	private final int width;	// The number of columns in the grid
+	private final int height;	// The number of rows in the grid
+	private final long[] blocked;	// Bitset of the blocked cells, cell y * width + x is bit (cell & 63) of word cell >> 6
+	private final byte[] legalDirections;	// For every cell, the DIRECTIONS a unit there can step in
+	private final short[] distances;	// The distance from cell a to cell b is at a * cellCount + b
+	
+	/**
+	 * Get the distance field for a map, reusing the one built earlier for the same map if there is one.
+	 * @param xExtent The x dimension of the map
+	 * @param yExtent The y dimension of the map
+	 * @param obstacleXs The x position of every obstacle
+	 * @param obstacleYs The y position of every obstacle
+	 * @return The distance field of the map
+	 */
+	public static DistanceField forMap(int xExtent, int yExtent, int[] obstacleXs, int[] obstacleYs)
+	{
+		int width = xExtent + 1;
+		int height = yExtent + 1;
+		long[] blocked = new long[(width * height + Long.SIZE - 1) / Long.SIZE];
+		
+		// The row and column past the extents are off the map
+		for (int x = 0; x < width; x++)
+		{
+			setBit(blocked, yExtent * width + x);
+		}
+		for (int y = 0; y < height; y++)
+		{
+			setBit(blocked, y * width + xExtent);
+		}
+		for (int i = 0; i < obstacleXs.length; i++)
+		{
+			setBit(blocked, obstacleYs[i] * width + obstacleXs[i]);
+		}
+		
+		MapKey key = new MapKey(width, height, blocked);
+		DistanceField field = FIELDS.get(key);
+		if (field == null)
+		{
+			if (FIELDS.size() >= MAX_CACHED_FIELDS)
+			{
+				FIELDS.clear();
+			}
+			// Two threads may both build the field of a new map, but only the first one is kept
+			field = new DistanceField(width, height, blocked);
+			DistanceField existing = FIELDS.putIfAbsent(key, field);
+			field = existing != null ? existing : field;
+		}
+		return field;
+	}
+	
+	private DistanceField(int width, int height, long[] blocked)
+	{
+		this.width = width;
+		this.height = height;
+		this.blocked = blocked;
+		
+		int cellCount = width * height;
+		this.legalDirections = new byte[cellCount];
+		for (int cell = 0; cell < cellCount; cell++)
+		{
+			int x = cell % width;
+			int y = cell / width;
+			for (int direction = 0; direction < DIRECTIONS.length; direction++)
+			{
+				if (!isBlocked(x + DIRECTIONS[direction].xComponent(), y + DIRECTIONS[direction].yComponent()))
+				{
+					this.legalDirections[cell] |= 1 << direction;
+				}
+			}
+		}
+		
+		this.distances = new short[cellCount * cellCount];
+		Arrays.fill(this.distances, (short) UNREACHABLE);
+		
+		int[] queue = new int[cellCount];
+		for (int source = 0; source < cellCount; source++)
+		{
+			if (!isBitSet(blocked, source))
+			{
+				search(source, queue);
+			}
+		}
+	}
+	
+	private static void setBit(long[] bits, int index)
+	{
+		bits[index >> 6] |= 1L << index;
+	}
+	
+	private static boolean isBitSet(long[] bits, int index)
+	{
+		return (bits[index >> 6] & (1L << index)) != 0;
+	}
+	
+	/**
+	 * Breadth first search from one cell, filling in its row of the distance table.
+	 * @param source The cell to search from
+	 * @param queue A work array with room for every cell
+	 */
+	private void search(int source, int[] queue)
+	{
+		int offset = source * this.width * this.height;
+		int head = 0;
+		int tail = 0;
+		
+		this.distances[offset + source] = 0;
+		queue[tail++] = source;
+		
+		while (head < tail)
+		{
+			int cell = queue[head++];
+			short nextDistance = (short) (this.distances[offset + cell] + 1);
+			
+			// Visit the open cardinal neighbours
+			for (int direction = 0; direction < DIRECTIONS.length; direction++)
+			{
+				if (!isLegal(cell, direction))
+				{
+					continue;
+				}
+				
+				int next = cell + DIRECTIONS[direction].yComponent() * this.width + DIRECTIONS[direction].xComponent();
+				if (this.distances[offset + next] == UNREACHABLE)
+				{
+					this.distances[offset + next] = nextDistance;
+					queue[tail++] = next;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return True if the position is an obstacle or off the map
+	 */
+	public boolean isBlocked(int x, int y)
+	{
+		return x < 0 || y < 0 || x >= this.width || y >= this.height || isBitSet(this.blocked, y * this.width + x);
+	}
+	
+	/**
+	 * @param x The x position of a cell in the grid
+	 * @param y The y position of a cell in the grid
+	 * @return The legal directions from the cell, bit d standing for DIRECTIONS[d]
+	 */
+	public int getLegalDirections(int x, int y)
+	{
+		return this.legalDirections[y * this.width + x];
+	}
+	
+	/**
+	 * @return True if a unit in the cell can step in DIRECTIONS[direction] without leaving the open cells
+	 */
+	private boolean isLegal(int cell, int direction)
+	{
+		return (this.legalDirections[cell] & (1 << direction)) != 0;
+	}
+	
+	/**
+	 * Look up the walking distance between two positions.
+	 * @return The number of cardinal steps between the positions, or UNREACHABLE
+	 */
+	public int getDistance(int fromX, int fromY, int toX, int toY)
+	{
+		return this.distances[(fromY * this.width + fromX) * this.width * this.height + toY * this.width + toX];
+	}
+	
+	/**
+	 * Tells maps apart by their grid size and blocked cells.
+	 */
+	private static class MapKey
+	{
+		private final int width;
+		private final int height;
+		private final long[] blocked;
+		
+		MapKey(int width, int height, long[] blocked)
+		{
+			this.width = width;
+			this.height = height;
+			this.blocked = blocked;
+		}
+		
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof MapKey))
+			{
+				return false;
+			}
+			MapKey key = (MapKey) other;
+			return this.width == key.width && this.height == key.height && Arrays.equals(this.blocked, key.blocked);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return (this.width * 31 + this.height) * 31 + Arrays.hashCode(this.blocked);
+		}
+	}
+}
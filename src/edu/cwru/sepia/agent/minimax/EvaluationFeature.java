@@ -0,0 +1,70 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * The features LinearEvaluator can weigh.  Each one is computed by GameState.getFeature() from the
+ * packed units, and the weights are looked up by the feature's key in a weights file or as a
+ * keyWeight=value agent argument.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public enum EvaluationFeature
+{
+	// The inverse of the average walking distance from a footman to its nearest archer
+	PATH_DISTANCE("distance", 100),
+
+	// The fraction of the archers' total HP they have lost.  Together with FOOTMAN_DAMAGE this is
+	// the HP differential, with a weight for each side.
+	ARCHER_DAMAGE("archerDamage", 1000),
+
+	// The fraction of the footmen's total HP they have lost.  The archers shoot from range whatever
+	// the footmen do, so this weighs much less than closing in, or the search would rather stand back
+	// than walk through the arrows.
+	FOOTMAN_DAMAGE("footmanDamage", -50),
+
+	// The number of archers with at most two free cells around them to flee to.  An archer that
+	// cannot back away is one the footmen can catch.
+	ARCHERS_CORNERED("cornered", 40),
+
+	// The number of archers that two or more footmen can attack at once
+	FLANKING("flanking", 0),
+
+	// The average number of cells between an archer and the nearest edge of the map
+	EDGE_DISTANCE("edgeDistance", 0);
+
+	private final String key;	// The name of the feature in weights files and agent arguments
+	private final double defaultWeight;
+
+	private EvaluationFeature(String key, double defaultWeight)
+	{
+		this.key = key;
+		this.defaultWeight = defaultWeight;
+	}
+
+	public String getKey()
+	{
+		return key;
+	}
+
+	public double getDefaultWeight()
+	{
+		return defaultWeight;
+	}
+
+	/**
+	 * @param key The key of a feature, in any case
+	 * @return The feature with that key
+	 * @throws IllegalArgumentException If no feature has that key
+	 */
+	public static EvaluationFeature fromKey(String key)
+	{
+		for (EvaluationFeature feature : values())
+		{
+			if (feature.key.equalsIgnoreCase(key.trim()))
+			{
+				return feature;
+			}
+		}
+		throw new IllegalArgumentException("Unknown evaluation feature: " + key);
+	}
+}
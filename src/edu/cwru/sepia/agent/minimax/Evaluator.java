@@ -0,0 +1,21 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * Scores the game states the search cannot see past.  Higher values are better for the footmen.
+ * States where one side has been wiped out never reach the evaluator, GameState scores them as
+ * plus or minus infinity itself.
+ *
+ * One evaluator is shared by every state of a search and by the helper threads of a parallel
+ * search, so implementations must not keep any state of their own between calls.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public interface Evaluator
+{
+	/**
+	 * @param state A state in which both sides still have living units
+	 * @return The utility of the state for the footmen
+	 */
+	double evaluate(GameState state);
+}
@@ -7,6 +7,7 @@ import edu.cwru.sepia.action.TargetedAction;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.State.StateBuilder;
 import edu.cwru.sepia.environment.model.state.State.StateView;
+import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
 import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.environment.model.state.Unit.UnitView;
 import edu.cwru.sepia.util.Direction;
@@ -28,14 +29,59 @@ public class GameState
 {
 	private final int xExtent;	// The x dimension of the board
 	private final int yExtent;	// The y dimension of the board
-	private final List<Integer> resourceIds;	// The list of resource IDs in the game
-	private StateView parentState;	// The state view from which this game state was created
-	private List<Integer> footmanUnitIds;	// The ids of all footmen in the game
-	private List<Integer> archerUnitIds;	// The ids of all archers in the game
-	private List<UnitView> units;	// The list of all units in the game
-	private Double utility;	// The utility of the game state
+	private final DistanceField distanceField;	// Walking distances around the obstacles, shared by the whole search
+	private final int[] unitIds;	// The SEPIA ids of every unit in the game, footmen first and then archers
+	private final int numFootmen;	// The number of leading entries in unitIds that belong to footmen
+	private final int[] units;	// The packed position and HP of every unit, indexed the same way as unitIds
+	private double utility = Double.NaN;	// The utility of the game state, NaN until it is first asked for
+	private final Evaluator evaluator;	// Scores the states below this one too, shared by the whole search
 	
-	private Map<UnitView, FootmanPosition> footmanPositions = new HashMap<UnitView, FootmanPosition>();	// Map locations to footmen
+	// Evaluation features, kept up to date by setUnit() as units move and take damage
+	private int distanceSum;	// The sum over living footmen of the walking distance to their nearest living archer
+	private int livingFootmen;
+	private int livingArchers;
+	private int footmanHP;	// The total HP of the footmen
+	private int archerHP;	// The total HP of the archers
+	private final int footmanBaseHP;	// The total HP of the footmen at full health
+	private final int archerBaseHP;	// The total HP of the archers at full health
+	private final long[] zobristKeys;	// Random keys for every (unit, cell) and (unit, hp) pair, shared by the whole search
+	private final int maxHP;	// The largest HP any unit can have, which sizes the HP keys
+	private long hashKey;	// The Zobrist hash of the packed units, kept up to date by setUnit()
+	private int move = NO_MOVE;	// The joint move that produced this state
+	private boolean footmenToMove = true;	// Whose turn it is, the footmen (MAX) or the archers (MIN)
+	
+	// Move generation settings, passed down to every state below the one they were set on
+	private boolean factoredMoves;	// Children are the action of one unit at a time rather than joint moves
+	private boolean pruneDominatedMoves;	// Leave out the footman steps another step beats for distance to every archer
+	private int pendingMove;	// In factored mode, the actions the side to move has chosen so far, encoded like a joint move
+	private int pendingUnits;	// How many units of the side to move have chosen their action
+	
+	// Combat statistics of every unit from its template, indexed the same way as unitIds
+	private final int[] basicAttack;
+	private final int[] piercingAttack;
+	private final int[] armor;
+	private final int[] range;
+	private final int[] baseHealth;	// The HP at full health, or the current HP if that is higher
+	
+	// A joint move gives every unit on the moving side a 4 bit action code, the i-th unit using bits 4i to 4i+3
+	public static final int NO_MOVE = -1;	// The move of a state that was not produced by a move, i.e. the root
+	public static final int MOVE_BITS = 4;
+	public static final int MAX_UNITS_PER_SIDE = Integer.SIZE / MOVE_BITS;	// Both sides must fit in the slots of a joint move
+	
+	// Action codes: IDLE does nothing, 1 to 4 move in the cardinal directions and ATTACK_CODE + i attacks the
+	// i-th unit of the other side
+	private static final int IDLE = 0;
+	private static final int ATTACK_CODE = 5;
+	private static final Direction[] DIRECTIONS = DistanceField.DIRECTIONS;	// Move i goes in DIRECTIONS[i - 1]
+	
+	// Fixed so that equal positions hash the same way on every turn
+	private static final long ZOBRIST_SEED = 0x5EB1A0F00DL;
+	
+	// Layout of a packed unit: | x (10 bits) | y (10 bits) | hp (12 bits) |
+	private static final int X_SHIFT = 22;
+	private static final int Y_SHIFT = 12;
+	private static final int COORDINATE_MASK = 0x3FF;
+	private static final int HP_MASK = 0xFFF;
 
     /**
      * You will implement this constructor. It will
@@ -68,38 +114,443 @@ public class GameState
      */
     public GameState(State.StateView state, boolean isInitial)
     {
+    	this(state, isInitial, LinearEvaluator.DEFAULT);
+    }
+    
+    /**
+     * Create the root game state of a search that scores its states with the given evaluator.
+     * @param state Current state of the episode
+     * @param evaluator Scores this state and every state below it
+     */
+    public GameState(State.StateView state, Evaluator evaluator)
+    {
+    	this(state, true, evaluator);
+    }
+    
+    private GameState(State.StateView state, boolean isInitial, Evaluator evaluator)
+    {
+    	this.evaluator = evaluator;
     	this.xExtent = state.getXExtent();
     	this.yExtent = state.getYExtent();
-    	this.resourceIds = state.getAllResourceIds();
-    	this.units = state.getAllUnits();
-    	this.parentState = state;
+    	List<Integer> resourceIds = state.getAllResourceIds();
+    	
+    	// Every resource on the map is an obstacle
+    	int[] obstacleXs = new int[resourceIds.size()];
+    	int[] obstacleYs = new int[resourceIds.size()];
+    	for (int i = 0; i < obstacleXs.length; i++)
+    	{
+    		ResourceView resource = state.getResourceNode(resourceIds.get(i));
+    		obstacleXs[i] = resource.getXPosition();
+    		obstacleYs[i] = resource.getYPosition();
+    	}
+    	this.distanceField = DistanceField.forMap(this.xExtent, this.yExtent, obstacleXs, obstacleYs);
 
-    	// Find all of the active units in this state
-    	footmanUnitIds = new ArrayList<Integer>();
-    	archerUnitIds = new ArrayList<Integer>();
+    	// Split the units into footmen and archers.  This is the only place the state view is read;
+    	// every game state below the root is built from the packed arrays instead.
+    	List<UnitView> footmen = new ArrayList<UnitView>();
+    	List<UnitView> archers = new ArrayList<UnitView>();
     	
-    	// Find all of the units in the game and add them to the appropriate list.
-    	for (UnitView unit : this.units)
+    	for (UnitView unit : state.getAllUnits())
     	{
     		String unitTypeName = unit.getTemplateView().getName();
     		
     		if (unitTypeName.equals("Footman"))
     		{
-    			footmanUnitIds.add(unit.getID());
-    			footmanPositions.put(unit, new FootmanPosition(unit.getXPosition(), unit.getYPosition()));    		
+    			footmen.add(unit);
     		}
     		else if (unitTypeName.equals("Archer"))
     		{
-    			archerUnitIds.add(unit.getID());
+    			archers.add(unit);
     		}    		
     	}
     	
+    	checkMoveEncoding(footmen.size(), archers.size());
+    	this.numFootmen = footmen.size();
+    	this.unitIds = new int[footmen.size() + archers.size()];
+    	this.units = new int[this.unitIds.length];
+    	
+    	int index = 0;
+    	for (UnitView unit : footmen)
+    	{
+    		this.unitIds[index] = unit.getID();
+    		this.units[index++] = pack(unit.getXPosition(), unit.getYPosition(), unit.getHP());
+    	}
+    	for (UnitView unit : archers)
+    	{
+    		this.unitIds[index] = unit.getID();
+    		this.units[index++] = pack(unit.getXPosition(), unit.getYPosition(), unit.getHP());
+    	}
+    	
+    	// Read the combat statistics of every unit
+    	this.basicAttack = new int[this.units.length];
+    	this.piercingAttack = new int[this.units.length];
+    	this.armor = new int[this.units.length];
+    	this.range = new int[this.units.length];
+    	this.baseHealth = new int[this.units.length];
+    	
+    	index = 0;
+    	for (UnitView unit : footmen)
+    	{
+    		readTemplate(index++, unit);
+    	}
+    	for (UnitView unit : archers)
+    	{
+    		readTemplate(index++, unit);
+    	}
+    	
+    	this.maxHP = getMaxHP(this.baseHealth);
+    	this.zobristKeys = createZobristKeys(this.units.length * (getCellCount() + this.maxHP + 1));
+    	this.footmanBaseHP = sum(this.baseHealth, 0, this.numFootmen);
+    	this.archerBaseHP = sum(this.baseHealth, this.numFootmen, this.units.length);
+    	initializeHashKeyAndFeatures();
+    	
     	// If it is the initial state then we need to calculate the utility.
     	if (isInitial)
     	{
     		this.calculateUtility();
     	}
     }
+    
+    /**
+     * Create the root game state of a search from a position read out of a PositionSnapshot, without
+     * going through SEPIA.  The state is the same as the one built from the state view the position
+     * was exported from.
+     * @param position The map and units
+     * @param evaluator Scores this state and every state below it
+     */
+    public GameState(PositionSnapshot.Position position, Evaluator evaluator)
+    {
+    	checkMoveEncoding(position.numFootmen, position.unitIds.length - position.numFootmen);
+    	this.evaluator = evaluator;
+    	this.xExtent = position.xExtent;
+    	this.yExtent = position.yExtent;
+    	
+    	int obstacleCount = 0;
+    	for (long word : position.blockedCells)
+    	{
+    		obstacleCount += Long.bitCount(word);
+    	}
+    	int[] obstacleXs = new int[obstacleCount];
+    	int[] obstacleYs = new int[obstacleCount];
+    	int obstacle = 0;
+    	for (int cell = 0; cell < this.xExtent * this.yExtent; cell++)
+    	{
+    		if ((position.blockedCells[cell >> 6] & (1L << cell)) != 0)
+    		{
+    			obstacleXs[obstacle] = cell % this.xExtent;
+    			obstacleYs[obstacle++] = cell / this.xExtent;
+    		}
+    	}
+    	this.distanceField = DistanceField.forMap(this.xExtent, this.yExtent, obstacleXs, obstacleYs);
+    	
+    	this.numFootmen = position.numFootmen;
+    	this.unitIds = position.unitIds.clone();
+    	this.units = new int[this.unitIds.length];
+    	for (int unit = 0; unit < this.units.length; unit++)
+    	{
+    		this.units[unit] = pack(position.xs[unit], position.ys[unit], position.hps[unit]);
+    	}
+    	this.basicAttack = position.basicAttack.clone();
+    	this.piercingAttack = position.piercingAttack.clone();
+    	this.armor = position.armor.clone();
+    	this.range = position.range.clone();
+    	this.baseHealth = position.baseHealth.clone();
+    	
+    	this.maxHP = getMaxHP(this.baseHealth);
+    	this.zobristKeys = createZobristKeys(this.units.length * (getCellCount() + this.maxHP + 1));
+    	this.footmanBaseHP = sum(this.baseHealth, 0, this.numFootmen);
+    	this.archerBaseHP = sum(this.baseHealth, this.numFootmen, this.units.length);
+    	initializeHashKeyAndFeatures();
+    	this.calculateUtility();
+    }
+    
+    /**
+     * A joint move has a 4 bit slot for every unit of the side to move, and attacking the i-th enemy
+     * takes action code ATTACK_CODE + i.  With at most MAX_UNITS_PER_SIDE units on each side both fit,
+     * and the highest code stays below 15, so no joint move can be NO_MOVE.
+     * @throws IllegalArgumentException If either side has too many units
+     */
+    private static void checkMoveEncoding(int footmen, int archers)
+    {
+    	if (footmen > MAX_UNITS_PER_SIDE || archers > MAX_UNITS_PER_SIDE)
+    	{
+    		throw new IllegalArgumentException("The search handles at most " + MAX_UNITS_PER_SIDE + " units per side, this map has "
+    				+ footmen + " footmen and " + archers + " archers");
+    	}
+    }
+    
+    /**
+     * HP never goes above a unit's base health, so that bounds the Zobrist HP keys.
+     * @return The largest base health of any unit, capped at what a packed unit can hold
+     */
+    private static int getMaxHP(int[] baseHealth)
+    {
+    	int highestHP = 0;
+    	for (int hp : baseHealth)
+    	{
+    		highestHP = Math.max(highestHP, hp);
+    	}
+    	return Math.min(highestHP, HP_MASK);
+    }
+    
+    /**
+     * @return The Zobrist keys, the same for equal maps and units on every turn
+     */
+    private static long[] createZobristKeys(int count)
+    {
+    	long[] keys = new long[count];
+    	Random random = new Random(ZOBRIST_SEED);
+    	for (int key = 0; key < keys.length; key++)
+    	{
+    		keys[key] = random.nextLong();
+    	}
+    	return keys;
+    }
+    
+    private static int sum(int[] values, int from, int to)
+    {
+    	int total = 0;
+    	for (int i = from; i < to; i++)
+    	{
+    		total += values[i];
+    	}
+    	return total;
+    }
+    
+    /**
+     * Compute the hash key and the evaluation features of a root state from scratch.  Below the root
+     * they are only updated.
+     */
+    private void initializeHashKeyAndFeatures()
+    {
+    	for (int unit = 0; unit < this.units.length; unit++)
+    	{
+    		this.hashKey ^= getUnitKey(unit, this.units[unit]);
+    	}
+    	for (int unit = 0; unit < this.units.length; unit++)
+    	{
+    		if (unit < this.numFootmen)
+    		{
+    			this.footmanHP += getHP(this.units[unit]);
+    			this.livingFootmen += isAlive(unit) ? 1 : 0;
+    		}
+    		else
+    		{
+    			this.archerHP += getHP(this.units[unit]);
+    			this.livingArchers += isAlive(unit) ? 1 : 0;
+    		}
+    	}
+    	for (int footman = 0; footman < this.numFootmen; footman++)
+    	{
+    		this.distanceSum += getNearestArcherDistance(footman, this.units[footman], -1, 0);
+    	}
+    }
+    
+    /**
+     * Create a child game state from its parent.  The immutable game information is shared with the
+     * parent and only the packed unit array is copied.
+     * @param parent The game state this state was reached from
+     * @param utility The utility of this state
+     * @param move The joint move that produced this state
+     */
+    private GameState(GameState parent, double utility, int move)
+    {
+    	this.xExtent = parent.xExtent;
+    	this.yExtent = parent.yExtent;
+    	this.distanceField = parent.distanceField;
+    	this.evaluator = parent.evaluator;
+    	this.unitIds = parent.unitIds;
+    	this.numFootmen = parent.numFootmen;
+    	this.units = parent.units.clone();
+    	this.zobristKeys = parent.zobristKeys;
+    	this.maxHP = parent.maxHP;
+    	this.hashKey = parent.hashKey;
+    	this.distanceSum = parent.distanceSum;
+    	this.livingFootmen = parent.livingFootmen;
+    	this.livingArchers = parent.livingArchers;
+    	this.footmanHP = parent.footmanHP;
+    	this.archerHP = parent.archerHP;
+    	this.footmanBaseHP = parent.footmanBaseHP;
+    	this.archerBaseHP = parent.archerBaseHP;
+    	this.basicAttack = parent.basicAttack;
+    	this.piercingAttack = parent.piercingAttack;
+    	this.armor = parent.armor;
+    	this.range = parent.range;
+    	this.baseHealth = parent.baseHealth;
+    	this.footmenToMove = parent.footmenToMove;
+    	this.factoredMoves = parent.factoredMoves;
+    	this.pruneDominatedMoves = parent.pruneDominatedMoves;
+    	this.pendingMove = parent.pendingMove;
+    	this.pendingUnits = parent.pendingUnits;
+    	this.utility = utility;
+    	this.move = move;
+    }
+    
+    /**
+     * Copy the combat statistics of a unit's template into the per-unit arrays.
+     */
+    private void readTemplate(int unitIndex, UnitView unit)
+    {
+    	this.basicAttack[unitIndex] = unit.getTemplateView().getBasicAttack();
+    	this.piercingAttack[unitIndex] = unit.getTemplateView().getPiercingAttack();
+    	this.armor[unitIndex] = unit.getTemplateView().getArmor();
+    	this.range[unitIndex] = unit.getTemplateView().getRange();
+    	this.baseHealth[unitIndex] = Math.max(unit.getHP(), unit.getTemplateView().getBaseHealth());
+    }
+    
+    /**
+     * Copy this game state with a different utility.  Used when the search already knows the value of
+     * a state, e.g. from the transposition table.
+     * @param utility The utility of the copy
+     * @return A copy of this state with the given utility
+     */
+    public GameState withUtility(double utility)
+    {
+    	return new GameState(this, utility, this.move);
+    }
+    
+    /**
+     * Copy this game state with other move generation settings, which every state generated below the
+     * copy inherits.
+     * @param factored Generate the action of one unit at a time, see getChildIterator()
+     * @param pruneDominated Leave out every footman step that another step of the same footman beats,
+     * ending at least as close to every living archer and closer to one of them
+     * @return A copy of this state with the given settings
+     */
+    public GameState withMoveGeneration(boolean factored, boolean pruneDominated)
+    {
+    	GameState copy = new GameState(this, this.utility, this.move);
+    	copy.factoredMoves = factored;
+    	copy.pruneDominatedMoves = pruneDominated;
+    	return copy;
+    }
+    
+    /**
+     * @return True if some but not all units of the side to move have chosen their action, so the
+     * positions are still those from the start of the ply
+     */
+    public boolean isMovePending()
+    {
+    	return this.pendingUnits > 0;
+    }
+    
+    /**
+     * @return True if the footmen move next, false if the archers do
+     */
+    public boolean isFootmenToMove()
+    {
+    	return this.footmenToMove;
+    }
+    
+    /**
+     * @return The Zobrist hash of the unit positions and HP in this state, and of the actions chosen so
+     * far in factored mode
+     */
+    public long getHashKey()
+    {
+    	return this.pendingUnits == 0 ? this.hashKey : this.hashKey ^ PositionTable.mix(this.pendingUnits, this.pendingMove);
+    }
+    
+    /**
+     * Key the state for a PositionTable.  Unlike getHashKey() the HP of a unit only counts as the
+     * number of hits it can still take from the hardest hitting enemy, since SEPIA rolls the damage of
+     * every attack and exact HP almost never comes up again.  Dead units count the same wherever they fell.
+     * @return The key of the unit positions, hits left and side to move, the same in every JVM
+     */
+    public long getTableKey()
+    {
+    	long key = PositionTable.mix(0, this.footmenToMove ? 1 : 0);
+    	for (int unit = 0; unit < this.units.length; unit++)
+    	{
+    		int hitsLeft = getHitsLeft(unit);
+    		key = PositionTable.mix(key, hitsLeft == 0 ? 0 : pack(getX(this.units[unit]), getY(this.units[unit]), hitsLeft));
+    	}
+    	return key;
+    }
+
+    /**
+     * @return The number of hits a unit can still take before it dies, 0 if it is dead
+     */
+    private int getHitsLeft(int unitIndex)
+    {
+    	int firstEnemy = unitIndex < this.numFootmen ? this.numFootmen : 0;
+    	int lastEnemy = unitIndex < this.numFootmen ? this.units.length : this.numFootmen;
+    	int damage = 1;
+    	for (int enemy = firstEnemy; enemy < lastEnemy; enemy++)
+    	{
+    		damage = Math.max(damage, getDamage(enemy, unitIndex));
+    	}
+    	return (getHP(this.units[unitIndex]) + damage - 1) / damage;
+    }
+
+    /**
+     * Key the map this state is on, for telling whether a PositionTable was built for it: the extents,
+     * the obstacles, and the ids and combat statistics of the units.
+     * @return The key of the map, the same in every JVM
+     */
+    public long getMapKey()
+    {
+    	long key = PositionTable.mix(this.xExtent, this.yExtent);
+    	for (int y = 0; y < this.yExtent; y++)
+    	{
+    		for (int x = 0; x < this.xExtent; x++)
+    		{
+    			key = this.distanceField.isBlocked(x, y) ? PositionTable.mix(key, y * this.xExtent + x) : key;
+    		}
+    	}
+    	key = PositionTable.mix(key, this.numFootmen);
+    	for (int unit = 0; unit < this.units.length; unit++)
+    	{
+    		key = PositionTable.mix(key, this.unitIds[unit]);
+    		key = PositionTable.mix(key, this.basicAttack[unit]);
+    		key = PositionTable.mix(key, this.piercingAttack[unit]);
+    		key = PositionTable.mix(key, this.armor[unit]);
+    		key = PositionTable.mix(key, this.range[unit]);
+    	}
+    	return key;
+    }
+
+    /**
+     * Read the map and units out of this state for a PositionSnapshot.  Only the position is kept, so
+     * a state built from it is a root with the footmen to move.
+     * @return The extents, obstacles, and the position, HP and combat statistics of every unit
+     */
+    public PositionSnapshot.Position toPosition()
+    {
+    	PositionSnapshot.Position position = new PositionSnapshot.Position(this.xExtent, this.yExtent, this.numFootmen, this.units.length);
+    	for (int y = 0; y < this.yExtent; y++)
+    	{
+    		for (int x = 0; x < this.xExtent; x++)
+    		{
+    			if (this.distanceField.isBlocked(x, y))
+    			{
+    				int cell = y * this.xExtent + x;
+    				position.blockedCells[cell >> 6] |= 1L << cell;
+    			}
+    		}
+    	}
+    	for (int unit = 0; unit < this.units.length; unit++)
+    	{
+    		position.unitIds[unit] = this.unitIds[unit];
+    		position.xs[unit] = getX(this.units[unit]);
+    		position.ys[unit] = getY(this.units[unit]);
+    		position.hps[unit] = getHP(this.units[unit]);
+    		position.baseHealth[unit] = this.baseHealth[unit];
+    		position.basicAttack[unit] = this.basicAttack[unit];
+    		position.piercingAttack[unit] = this.piercingAttack[unit];
+    		position.armor[unit] = this.armor[unit];
+    		position.range[unit] = this.range[unit];
+    	}
+    	return position;
+    }
+
+    /**
+     * @return The joint move that produced this state, or NO_MOVE for the root
+     */
+    public int getMove()
+    {
+    	return this.move;
+    }
 
     /**
      * You will implement this function.
@@ -121,36 +572,190 @@ public class GameState
      */
     public double getUtility() 
     {
+    	// Evaluation is deferred until a state is actually used as a leaf or for ordering
+    	if (Double.isNaN(this.utility))
+    	{
+    		this.utility = computeUtility();
+    	}
     	return this.utility;
     }
     
     /**
-     * Calculate the utility of a state based on the positions of the footmen relative to the archers.
+     * Calculate the utility of a state with the evaluator of the search, see LinearEvaluator and
+     * EvaluationFeature for the features it weighs.
      */
     public void calculateUtility()
     {
-    	Double minDistance = 0.0;
+    	this.utility = computeUtility();
+    }
+    
+    /**
+     * Compute the utility of the current unit positions without storing it.
+     * @return The utility of the current unit positions
+     */
+    private double computeUtility()
+    {
+    	// The game is over when either side has been wiped out
+    	if (this.livingArchers == 0)
+    	{
+    		return Double.POSITIVE_INFINITY;
+    	}
+    	if (this.livingFootmen == 0)
+    	{
+    		return Double.NEGATIVE_INFINITY;
+    	}
+    	return this.evaluator.evaluate(this);
+    }
+    
+    /**
+     * Compute one evaluation feature of this state.  The distance and HP features are kept up to date
+     * incrementally as units change, so they take constant time; the others look at every archer.
+     * @param feature The feature to compute
+     * @return The value of the feature, see EvaluationFeature
+     */
+    public double getFeature(EvaluationFeature feature)
+    {
+    	switch (feature)
+    	{
+    	case PATH_DISTANCE:
+    		// Average the minimum distance and invert it, so low minimum distance has high utility.  The sum
+    		// is only 0 when no footman has a living archer to walk to.
+    		return this.distanceSum == 0 ? 0 : this.livingFootmen / (double) this.distanceSum;
+    	case ARCHER_DAMAGE:
+    		return 1 - (double) this.archerHP / this.archerBaseHP;
+    	case FOOTMAN_DAMAGE:
+    		return 1 - (double) this.footmanHP / this.footmanBaseHP;
+    	case ARCHERS_CORNERED:
+    		return countCorneredArchers();
+    	case FLANKING:
+    		return countFlankedArchers();
+    	case EDGE_DISTANCE:
+    		return getAverageEdgeDistance();
+    	default:
+    		throw new IllegalArgumentException("Unknown evaluation feature: " + feature);
+    	}
+    }
+    
+    /**
+     * @return The number of living archers with at most two of their four cardinal neighbours free
+     * of obstacles, other units and the edges of the map
+     */
+    private int countCorneredArchers()
+    {
+    	int cornered = 0;
+    	for (int archer = this.numFootmen; archer < this.units.length; archer++)
+    	{
+    		if (!isAlive(archer))
+    		{
+    			continue;
+    		}
+    		int x = getX(this.units[archer]);
+    		int y = getY(this.units[archer]);
+    		int freeCells = (isFree(x + 1, y) ? 1 : 0) + (isFree(x - 1, y) ? 1 : 0) + (isFree(x, y + 1) ? 1 : 0) + (isFree(x, y - 1) ? 1 : 0);
+    		if (freeCells <= 2)
+    		{
+    			cornered++;
+    		}
+    	}
+    	return cornered;
+    }
+    
+    /**
+     * @return True if a unit could move into the cell: it is on the map, not an obstacle and no living
+     * unit stands there
+     */
+    private boolean isFree(int x, int y)
+    {
+    	return !this.distanceField.isBlocked(x, y) && !isOccupied(x, y);
+    }
+    
+    /**
+     * @return The number of living archers within the range of two or more living footmen
+     */
+    private int countFlankedArchers()
+    {
+    	int flanked = 0;
+    	for (int archer = this.numFootmen; archer < this.units.length; archer++)
+    	{
+    		if (!isAlive(archer))
+    		{
+    			continue;
+    		}
+    		int attackers = 0;
+    		for (int footman = 0; footman < this.numFootmen; footman++)
+    		{
+    			if (isAlive(footman) && isInRange(footman, archer))
+    			{
+    				attackers++;
+    			}
+    		}
+    		if (attackers >= 2)
+    		{
+    			flanked++;
+    		}
+    	}
+    	return flanked;
+    }
+    
+    /**
+     * @return The average over the living archers of the number of cells to the nearest edge of the map
+     */
+    private double getAverageEdgeDistance()
+    {
+    	int distanceSum = 0;
+    	for (int archer = this.numFootmen; archer < this.units.length; archer++)
+    	{
+    		if (isAlive(archer))
+    		{
+    			int x = getX(this.units[archer]);
+    			int y = getY(this.units[archer]);
+    			distanceSum += Math.min(Math.min(x, this.xExtent - 1 - x), Math.min(y, this.yExtent - 1 - y));
+    		}
+    	}
+    	return (double) distanceSum / this.livingArchers;
+    }
+    
+    /**
+     * Find the walking distance from a footman to the nearest living archer, looked up in the
+     * precomputed distance field so it works around obstacles.  A footman that obstacles cut off from
+     * every archer counts as the longest path the map can have, one step per cell, rather than as
+     * UNREACHABLE, which would swamp the other footmen's distances in distanceSum.
+     * @param footman The index of the footman
+     * @param packedFootman The packed position and HP to measure from
+     * @param replacedArcher The index of an archer to measure with a different packed value, or -1
+     * @param replacementArcher The packed value to use for that archer
+     * @return The distance, or 0 if the footman or every archer is dead
+     */
+    private int getNearestArcherDistance(int footman, int packedFootman, int replacedArcher, int replacementArcher)
+    {
+    	if (getHP(packedFootman) == 0)
+    	{
+    		return 0;
+    	}
+    	
+    	int footmanX = getX(packedFootman);
+    	int footmanY = getY(packedFootman);
+    	int minDistance = Integer.MAX_VALUE;
     	
-    	// For every footman, find the minimum distance to any archer.
-    	for (UnitView footman : footmanPositions.keySet())
+    	for (int archer = this.numFootmen; archer < this.units.length; archer++)
     	{
-    		Double individualMinDistance = Double.POSITIVE_INFINITY;
+    		int packedArcher = archer == replacedArcher ? replacementArcher : this.units[archer];
+    		if (getHP(packedArcher) == 0)
+    		{
+    			continue;
+    		}
     		
-    		for (Integer archerID : archerUnitIds)
-        	{
-        		UnitView archerUnit = this.parentState.getUnit(archerID);        		
-        		Double distance = Math.sqrt(Math.abs((Math.pow((footmanPositions.get(footman).xPosition - archerUnit.getXPosition()), 2)) + (Math.pow((footmanPositions.get(footman).yPosition - archerUnit.getYPosition()), 2))));        		
-        		
-        		if (distance < individualMinDistance)
-        		{        			        			
-        			individualMinDistance = distance;
-        		}        		
-        	}
-    		minDistance += individualMinDistance;
-    	}
-    	// Average the minimum distance and invert it to get a utility.
-    	// This way, low minimum distance has high utility. 
-    	this.utility = 100 / (minDistance / footmanPositions.size());
+    		int distance = this.distanceField.getDistance(footmanX, footmanY, getX(packedArcher), getY(packedArcher));
+    		if (distance < minDistance)
+    		{
+    			minDistance = distance;
+    		}
+    	}
+    	if (minDistance == Integer.MAX_VALUE)
+    	{
+    		return 0;
+    	}
+    	return Math.min(minDistance, this.xExtent * this.yExtent);
     }
 
     /**
@@ -169,170 +774,937 @@ public class GameState
      *
      * @return All possible actions and their associated resulting game state
      *
-     *** We could not find a way to have this method behave dynamically (i.e., accept an arbitrary number of footmen)
-     *** so it is designed to handle exactly two footmen.
+     * Footman and archer turns alternate, so the children of a state where the footmen move are states
+     * where the archers move and the other way around.
      */
     public List<GameStateChild> getChildren() 
     {
     	List<GameStateChild> children = new ArrayList<GameStateChild>();	// The list of children to be returned
-		
-    	// Look in directions NORTH, SOUTH, EAST, and WEST
-    	for (Direction direction1 : getCardinal())
-    	{
-    		// Look in every direction for every direction we're looking in
-    		for (Direction direction2 : getCardinal())
-    		{
-    			// Generate possible actions from this state for each footman unit    		
-        		int unitID1 = 0;	// the first footman id
-        		int unitID2 = 1;	// the second footman id
-        		UnitView unit1 = this.parentState.getUnit(unitID1); // footman 1
-        		UnitView unit2 = this.parentState.getUnit(unitID2);	// footman 2
-    		
-        		Integer archerID = getArcherInRange(unit1.getXPosition(), unit1.getYPosition());	// Checks if an archer is in attacking range        
-        		
-        		int nextFootman1XPosition;	// The next position of the footman in a child game state
-        		int nextFootman1YPosition;
-        		
-        		int nextFootman2XPosition;	// The next position of the second footman in a child game state
-        		int nextFootman2YPosition;
-        		
-        		// Check that the next state actually has positions mapped to the footman
-        		if (footmanPositions.containsKey(unit1) && footmanPositions.containsKey(unit2))
-        		{
-        			// Update footman positions given the directions
-        			nextFootman1XPosition = footmanPositions.get(unit1).xPosition + direction1.xComponent();
-            		nextFootman1YPosition = footmanPositions.get(unit1).yPosition + direction1.yComponent();
-            		
-            		nextFootman2XPosition = footmanPositions.get(unit2).xPosition + direction2.xComponent();
-            		nextFootman2YPosition = footmanPositions.get(unit2).yPosition + direction2.yComponent();            	
-        		
-            		// See if an archer is in range to attack and that the next state is in bounds for both footmen
-            		if (archerID != null && inBounds(nextFootman1XPosition, nextFootman1YPosition) && inBounds(nextFootman2XPosition, nextFootman2YPosition))
-            		{
-            			Map<Integer, Action> stateActions = new HashMap<Integer, Action>();
-            			
-            			// Add primitive attack actions to each footman
-            			stateActions.put(unitID1, Action.createPrimitiveAttack(unitID1, archerID));
-            			stateActions.put(unitID2, Action.createPrimitiveAttack(unitID2, archerID));
-            			
-            			GameState nextGameState = new GameState(this.parentState, false);
-            			
-            			// Remap the unit in the new game state with its updated future position
-            			nextGameState.footmanPositions.remove(unit1);
-            			nextGameState.footmanPositions.remove(unit2);
-            			nextGameState.footmanPositions.put(unit1, new FootmanPosition(nextFootman1XPosition, nextFootman1YPosition));
-            			nextGameState.footmanPositions.put(unit2, new FootmanPosition(nextFootman2XPosition, nextFootman2YPosition));
-            			
-            			// Since we are attacking in this state, assign a very high utility
-            			nextGameState.utility = Double.POSITIVE_INFINITY;
-            			GameStateChild nextChild = new GameStateChild(stateActions, nextGameState);
-        				children.add(nextChild);	// Add the child
-            		}
-            		// The resulting move is still inbounds
-            		else if (inBounds(nextFootman1XPosition, nextFootman1YPosition) && inBounds(nextFootman2XPosition, nextFootman2YPosition))
-            		{        			
-            			Map<Integer, Action> stateActions = new HashMap<Integer, Action>();
-            			
-            			// Add move actions to each footman
-            			stateActions.put(unitID1, Action.createPrimitiveMove(unitID1, direction1));
-            			stateActions.put(unitID2, Action.createPrimitiveMove(unitID2, direction2));
-
-            			GameState nextGameState = new GameState(this.parentState, false);
-            			
-            			// Remap the unit in the new game state with its updated future position
-            			nextGameState.footmanPositions.remove(unit1);
-            			nextGameState.footmanPositions.remove(unit2);
-            			nextGameState.footmanPositions.put(unit1, new FootmanPosition(nextFootman1XPosition, nextFootman1YPosition));
-            			nextGameState.footmanPositions.put(unit2, new FootmanPosition(nextFootman2XPosition, nextFootman2YPosition));
-            			
-            			// Calculate utility of state
-            			nextGameState.calculateUtility();
-            			GameStateChild nextChild = new GameStateChild(stateActions, nextGameState);        			                			    			
-        				children.add(nextChild);     // Add the child   				
-            		}        	
-        		}
-    		}	
-    	}
     	
+    	Iterator<GameStateChild> childIterator = getChildIterator();
+    	while (childIterator.hasNext())
+    	{
+    		children.add(childIterator.next());
+    	}
         return children;
     }
     
     /**
-     * Get the cardinal directions for footman movement
-     * @return an array of the cardinal directions
+     * Generate the children of this state one at a time.  Nothing is built until next() asks for it,
+     * so a search that stops at a cutoff never pays for the children it did not look at.
+     *
+     * Every living unit of the side to move can attack any living enemy within its range or move in a
+     * cardinal direction, and the children are every combination of those choices, less the ones where
+     * two units step into the same cell (see createChild()).  This works for any number of footmen and
+     * archers, up to 8 on a side so a joint move fits in an int.
+     *
+     * The state is modified in place while a child is being built, so it must not be shared with
+     * another thread that is generating children at the same time.
+     *
+     * In factored mode (see withMoveGeneration()) a ply is split into one level per unit of the side to
+     * move instead: the children are the actions of the next unit to choose, with the same side still to
+     * move, and the joint move is only played once the last unit has chosen.  Every unit chooses from
+     * the positions at the start of the ply, as in a joint move, so the tree holds the same joint
+     * moves, but alpha-beta sees each unit's action on its own.  getMove() of a child is the joint move
+     * of the actions chosen so far, and its actions are only the unit's own until the last unit's
+     * child, which holds them all.  A unit is not offered the cells the units before it step into, and
+     * waits if that leaves it nothing.
+     *
+     * @return An iterator over all possible actions and their associated resulting game state
      */
-    private Direction[] getCardinal()
+    public Iterator<GameStateChild> getChildIterator()
     {
-    	Direction[] cardinalDirections = new Direction[4];
-    	cardinalDirections[0] = Direction.NORTH;
-    	cardinalDirections[1] = Direction.SOUTH;
-    	cardinalDirections[2] = Direction.EAST;
-    	cardinalDirections[3] = Direction.WEST;    
-    	
-    	return cardinalDirections;
+    	return this.factoredMoves ? new UnitChildIterator() : new ChildIterator(false);
     }
     
     /**
-     * Check if the position after a potential move/attack is still on the board
-     * @param x
-     * @param y
-     * @return
+     * Build the child that one move leads to, without generating the others, so a search can try the
+     * moves it expects to be best before it pays for the rest.
+     * @param move The move of the child, e.g. one a transposition table stored
+     * @return The child the iterator of getChildIterator() would give for the move, or null if it gives none
      */
-    private boolean inBounds(int x, int y)
+    public GameStateChild getChild(int move)
     {
-    	return !(x > this.xExtent || y > this.yExtent || x < 0 || y < 0);    	
+    	return this.factoredMoves ? new UnitChildIterator().buildChild(move) : new ChildIterator(false).buildChild(move);
     }
     
     /**
-     * Check if there is an archer that the footman can attack given its coordinates
-     * @param x
-     * @param y
-     * @return
+     * Generate only the children where at least one unit of the side to move attacks and the others
+     * wait, for the quiescence search.  Doing nothing at all is left out, the search covers it by
+     * standing pat on this state's own utility.  The children are always joint moves, so this must not
+     * be called on a state with a move pending.
+     * @return An iterator over the attacking children of this state, empty if no unit can attack
      */
-    private Integer getArcherInRange(int x, int y)
+    public Iterator<GameStateChild> getAttackIterator()
     {
-    	for (Integer archerID : archerUnitIds)
-    	{
-    		UnitView archerUnit = this.parentState.getUnit(archerID);
-    		
-    		if (Math.abs(archerUnit.getXPosition() - x) <= 1 && Math.abs(archerUnit.getYPosition() - y) <= 1)
-    		{
-    			// Can evaluate an attack state
-    			return archerID;
-    		}
-    	}
-    	return null;
+    	return new ChildIterator(true);
     }
     
     /**
-     * Prints the coordinates of each footman's cell location
-     * @return
+     * List the action codes available to one unit.
+     * @param unitIndex The index of the unit in the packed unit array
+     * @param attacksOnly List the unit's attacks followed by IDLE instead of its attacks and moves
+     * @return The unit's action codes, just IDLE if it is dead or cannot do anything
      */
-    public String getFootmanCoordinates()
+    private int[] getUnitOptions(int unitIndex, boolean attacksOnly)
     {
-    	StringBuilder footmanCoordinates = new StringBuilder();
-    	for (UnitView footman : footmanPositions.keySet())
+    	if (!isAlive(unitIndex))
     	{
-    		footmanCoordinates.append("Footman " + footman.getID() + " is at node: (" + footmanPositions.get(footman).xPosition + ", " + footmanPositions.get(footman).yPosition + "), ");
+    		return new int[] { IDLE };
+    	}
+    	
+    	boolean isFootman = unitIndex < this.numFootmen;
+    	int firstEnemy = isFootman ? this.numFootmen : 0;
+    	int lastEnemy = isFootman ? this.units.length : this.numFootmen;
+    	
+    	int x = getX(this.units[unitIndex]);
+    	int y = getY(this.units[unitIndex]);
+    	int[] options = new int[lastEnemy - firstEnemy + DIRECTIONS.length];
+    	int count = 0;
+    	
+    	// Attacks come first, they are usually the best move for either side
+    	for (int enemy = firstEnemy; enemy < lastEnemy; enemy++)
+    	{
+    		if (isAlive(enemy) && isInRange(unitIndex, enemy))
+    		{
+    			options[count++] = ATTACK_CODE + enemy - firstEnemy;
+    		}
+    	}
+    	if (attacksOnly)
+    	{
+    		options[count++] = IDLE;
+    		return Arrays.copyOf(options, count);
+    	}
+    	
+    	// Steps off the map and into obstacles are ruled out by the distance field's table, steps into
+    	// other units by their positions
+    	int legalDirections = this.distanceField.getLegalDirections(x, y);
+    	int freeDirections = 0;
+    	for (int direction = 0; direction < DIRECTIONS.length; direction++)
+    	{
+    		if ((legalDirections & (1 << direction)) != 0 && !isOccupied(x + DIRECTIONS[direction].xComponent(), y + DIRECTIONS[direction].yComponent()))
+    		{
+    			freeDirections |= 1 << direction;
+    		}
+    	}
+    	if (this.pruneDominatedMoves && isFootman)
+    	{
+    		freeDirections = removeDominatedSteps(x, y, freeDirections);
+    	}
+    	for (int direction = 0; direction < DIRECTIONS.length; direction++)
+    	{
+    		if ((freeDirections & (1 << direction)) != 0)
+    		{
+    			options[count++] = direction + 1;
+    		}
+    	}
+    	
+    	return count == 0 ? new int[] { IDLE } : Arrays.copyOf(options, count);
+    }
+    
+    /**
+     * Rule out the footman steps that are dominated: another step ends at least as close to every
+     * living archer and closer to one of them.  With one archer only the steps that close in the most
+     * are left.  This is a forward pruning, the search can no longer find a footman stepping aside to
+     * block an archer's way.
+     * @param x The footman's x position
+     * @param y The footman's y position
+     * @param directions The free directions, bit d standing for DIRECTIONS[d]
+     * @return The free directions that are not dominated
+     */
+    private int removeDominatedSteps(int x, int y, int directions)
+    {
+    	int kept = directions;
+    	for (int direction = 0; direction < DIRECTIONS.length; direction++)
+    	{
+    		for (int other = 0; other < DIRECTIONS.length && (directions & (1 << direction)) != 0; other++)
+    		{
+    			if (other != direction && (directions & (1 << other)) != 0 && isCloserStep(x, y, DIRECTIONS[other], DIRECTIONS[direction]))
+    			{
+    				kept &= ~(1 << direction);
+    				break;
+    			}
+    		}
+    	}
+    	return kept;
+    }
+    
+    /**
+     * @return True if stepping in the first direction ends at least as close to every living archer as
+     * stepping in the second, and closer to one of them
+     */
+    private boolean isCloserStep(int x, int y, Direction step, Direction otherStep)
+    {
+    	boolean closer = false;
+    	for (int archer = this.numFootmen; archer < this.units.length; archer++)
+    	{
+    		if (!isAlive(archer))
+    		{
+    			continue;
+    		}
+    		int archerX = getX(this.units[archer]);
+    		int archerY = getY(this.units[archer]);
+    		int distance = this.distanceField.getDistance(x + step.xComponent(), y + step.yComponent(), archerX, archerY);
+    		int otherDistance = this.distanceField.getDistance(x + otherStep.xComponent(), y + otherStep.yComponent(), archerX, archerY);
+    		if (distance > otherDistance)
+    		{
+    			return false;
+    		}
+    		closer |= distance < otherDistance;
+    	}
+    	return closer;
+    }
+    
+    /**
+     * Walks through every joint action of the side to move, building each child only when it is asked for.
+     */
+    private class ChildIterator implements Iterator<GameStateChild>
+    {
+    	private final int firstUnit;	// The index of the first unit of the side to move
+    	private final int[][] options;	// The action codes of every unit of the side to move
+    	private final int[] choice;	// The option each unit takes in the next joint action
+    	private final int[] changedUnits;	// The unit each action changed, for taking it back
+    	private final int[] previousValues;	// The packed values of those units before the actions
+    	private final boolean attacksOnly;	// Skip moves and the joint action where every unit waits
+    	private boolean hasNext;
+    	private boolean onlyChild;	// Every combination clashed, the one child left is the first with the clashes waiting
+    	
+    	public ChildIterator(boolean attacksOnly)
+    	{
+    		this.attacksOnly = attacksOnly;
+    		this.firstUnit = footmenToMove ? 0 : numFootmen;
+    		int numMoving = footmenToMove ? numFootmen : units.length - numFootmen;
+    		
+    		this.options = new int[numMoving][];
+    		this.choice = new int[numMoving];
+    		this.changedUnits = new int[numMoving];
+    		this.previousValues = new int[numMoving];
+    		
+    		// A side with no living units has lost, and the game is over
+    		for (int unit = 0; unit < numMoving; unit++)
+    		{
+    			this.options[unit] = getUnitOptions(this.firstUnit + unit, attacksOnly);
+    			this.hasNext |= isAlive(this.firstUnit + unit);
+    		}
+    		this.hasNext &= !isEveryUnitWaiting();
+    		
+    		// The state still has a child when every combination clashes, where SEPIA would make some units wait
+    		if (this.hasNext && hasClash() && !advance())
+    		{
+    			Arrays.fill(this.choice, 0);
+    			this.onlyChild = true;
+    		}
+    	}
+    	
+    	/**
+    	 * Move on to the next combination where no two units step into the same cell.
+    	 * @return False once every combination has been visited
+    	 */
+    	private boolean advance()
+    	{
+    		do
+    		{
+    			if (!nextCombination(this.choice, this.options) || isEveryUnitWaiting())
+    			{
+    				return false;
+    			}
+    		}
+    		while (hasClash());
+    		return true;
+    	}
+    	
+    	/**
+    	 * @return True if two units step into the same cell in the current combination
+    	 */
+    	private boolean hasClash()
+    	{
+    		for (int unit = 0; unit < this.choice.length; unit++)
+    		{
+    			for (int other = unit + 1; other < this.choice.length; other++)
+    			{
+    				if (isSameStep(this.firstUnit + unit, this.options[unit][this.choice[unit]],
+    						this.firstUnit + other, this.options[other][this.choice[other]]))
+    				{
+    					return true;
+    				}
+    			}
+    		}
+    		return false;
+    	}
+    	
+    	/**
+    	 * In attack only mode every unit's last option is IDLE, so the joint action where every unit
+    	 * waits is the last combination and ends the iteration.
+    	 */
+    	private boolean isEveryUnitWaiting()
+    	{
+    		if (!this.attacksOnly)
+    		{
+    			return false;
+    		}
+    		for (int unit = 0; unit < this.choice.length; unit++)
+    		{
+    			if (this.choice[unit] != this.options[unit].length - 1)
+    			{
+    				return false;
+    			}
+    		}
+    		return true;
+    	}
+    	
+    	@Override
+    	public boolean hasNext()
+    	{
+    		return this.hasNext;
+    	}
+    	
+    	@Override
+    	public GameStateChild next()
+    	{
+    		if (!this.hasNext)
+    		{
+    			throw new NoSuchElementException();
+    		}
+    		
+    		int childMove = 0;
+    		for (int unit = 0; unit < this.choice.length; unit++)
+    		{
+    			childMove |= encodeAction(unit, this.options[unit][this.choice[unit]]);
+    		}
+    		GameStateChild child = createChild(childMove, this.changedUnits, this.previousValues);
+    		
+    		this.hasNext = !this.onlyChild && advance();
+    		return child;
+    	}
+    	
+    	/**
+    	 * Build the child of one joint move, if it is one of the combinations this iterator walks
+    	 * through.  The iterator cannot be used after this.
+    	 * @return The child, or null if the move is not one of them
+    	 */
+    	public GameStateChild buildChild(int move)
+    	{
+    		if (this.onlyChild)
+    		{
+    			GameStateChild child = next();	// Its move is only known once the clashes are resolved
+    			return child.state.getMove() == move ? child : null;
+    		}
+    		if (!this.hasNext || (this.choice.length * MOVE_BITS < Integer.SIZE && move >>> (this.choice.length * MOVE_BITS) != 0))
+    		{
+    			return null;
+    		}
+    		for (int unit = 0; unit < this.choice.length; unit++)
+    		{
+    			this.choice[unit] = indexOf(this.options[unit], (move >>> (unit * MOVE_BITS)) & ((1 << MOVE_BITS) - 1));
+    			if (this.choice[unit] < 0)
+    			{
+    				return null;
+    			}
+    		}
+    		return hasClash() || isEveryUnitWaiting() ? null : createChild(move, this.changedUnits, this.previousValues);
+    	}
+    	
+    	@Override
+    	public void remove()
+    	{
+    		throw new UnsupportedOperationException();
     	}
-    	return footmanCoordinates.toString();
     }
     
     /**
-     * This class maps current and future potential positions to a footman unit.  It is used to look 
-     * at future states and analyze the positions of the footmen.
-     * @author Tim Sesler
-     * @author Adam Boe
+     * Walks through the actions of the next unit of the side to move to choose, in factored mode.
      */
-    private class FootmanPosition
+    private class UnitChildIterator implements Iterator<GameStateChild>
     {
-    	public int xPosition;
-    	public int yPosition;
+    	private final int unitIndex;	// The index of the unit choosing its action
+    	private final int[] options;	// Its action codes
+    	private final int[] changedUnits;	// For createChild() when this is the last unit to choose, else null
+    	private final int[] previousValues;
+    	private int next;	// The option the next child takes
     	
-    	public FootmanPosition(int x, int y)
+    	public UnitChildIterator()
     	{
-    		this.xPosition = x;
-    		this.yPosition = y;
+    		int firstUnit = footmenToMove ? 0 : numFootmen;
+    		int numMoving = footmenToMove ? numFootmen : units.length - numFootmen;
+    		this.unitIndex = firstUnit + pendingUnits;
+    		
+    		// A side with no living units has lost, and the game is over
+    		boolean sideAlive = false;
+    		for (int unit = firstUnit; unit < firstUnit + numMoving; unit++)
+    		{
+    			sideAlive |= isAlive(unit);
+    		}
+    		this.options = sideAlive ? getFreeOptions(firstUnit) : new int[0];
+    		
+    		boolean isLastUnit = pendingUnits == numMoving - 1;
+    		this.changedUnits = isLastUnit ? new int[numMoving] : null;
+    		this.previousValues = isLastUnit ? new int[numMoving] : null;
+    	}
+    	
+    	/**
+    	 * @return The unit's options without the steps into a cell a unit that already chose steps into,
+    	 * just IDLE if that leaves nothing
+    	 */
+    	private int[] getFreeOptions(int firstUnit)
+    	{
+    		int[] unitOptions = getUnitOptions(this.unitIndex, false);
+    		int count = 0;
+    		for (int option = 0; option < unitOptions.length; option++)
+    		{
+    			boolean free = true;
+    			for (int unit = 0; unit < pendingUnits && free; unit++)
+    			{
+    				int actionCode = (pendingMove >>> (unit * MOVE_BITS)) & ((1 << MOVE_BITS) - 1);
+    				free = !isSameStep(this.unitIndex, unitOptions[option], firstUnit + unit, actionCode);
+    			}
+    			if (free)
+    			{
+    				unitOptions[count++] = unitOptions[option];
+    			}
+    		}
+    		return count == 0 ? new int[] { IDLE } : Arrays.copyOf(unitOptions, count);
     	}
+    	
+    	@Override
+    	public boolean hasNext()
+    	{
+    		return this.next < this.options.length;
+    	}
+    	
+    	@Override
+    	public GameStateChild next()
+    	{
+    		if (!hasNext())
+    		{
+    			throw new NoSuchElementException();
+    		}
+    		
+    		return createUnitChild(this.options[this.next++]);
+    	}
+    	
+    	/**
+    	 * Build the child of a move whose earlier units are the pending move, if the unit can take the
+    	 * action it gives the unit.
+    	 * @return The child, or null if the move is not one of this iterator's
+    	 */
+    	public GameStateChild buildChild(int move)
+    	{
+    		int shift = pendingUnits * MOVE_BITS;
+    		int actionCode = move >>> shift;
+    		if ((move & ((1 << shift) - 1)) != pendingMove || actionCode >= 1 << MOVE_BITS || indexOf(this.options, actionCode) < 0)
+    		{
+    			return null;
+    		}
+    		return createUnitChild(actionCode);
+    	}
+    	
+    	/**
+    	 * @return The child where the unit takes one of its options
+    	 */
+    	private GameStateChild createUnitChild(int actionCode)
+    	{
+    		int childMove = pendingMove | encodeAction(pendingUnits, actionCode);
+    		if (this.changedUnits != null)
+    		{
+    			return createChild(childMove, this.changedUnits, this.previousValues);
+    		}
+    		
+    		// Only remember the choice, the positions stay those from the start of the ply
+    		GameState nextGameState = new GameState(GameState.this, Double.NaN, childMove);
+    		nextGameState.pendingMove = childMove;
+    		nextGameState.pendingUnits = pendingUnits + 1;
+    		
+    		Map<Integer, Action> stateActions = new HashMap<Integer, Action>();
+    		if (actionCode != IDLE)
+    		{
+    			stateActions.put(unitIds[this.unitIndex], createAction(this.unitIndex, actionCode));
+    		}
+    		return new GameStateChild(stateActions, nextGameState);
+    	}
+    	
+    	@Override
+    	public void remove()
+    	{
+    		throw new UnsupportedOperationException();
+    	}
+    }
+    
+    /**
+     * Build the child a joint move of the side to move leads to.  The actions are applied to this state
+     * in place, copied into the child and taken back.
+     *
+     * The iterators leave out the joint moves where two units step into the same cell, except for the one
+     * child of a state where every joint move does.  SEPIA would turn one of those steps down, so there
+     * the later unit waits instead and the child's move records it waiting.
+     * @param childMove The joint move
+     * @param changedUnits Scratch space with one entry per unit of the side to move
+     * @param previousValues Scratch space of the same length
+     * @return The child with the SEPIA actions of the joint move
+     */
+    private GameStateChild createChild(int childMove, int[] changedUnits, int[] previousValues)
+    {
+    	int firstUnit = this.footmenToMove ? 0 : this.numFootmen;
+    	Map<Integer, Action> stateActions = new HashMap<Integer, Action>();
+    	
+    	// The features are cheaper to save than to update back when the actions are taken back
+    	int savedDistanceSum = this.distanceSum;
+    	int savedLivingFootmen = this.livingFootmen;
+    	int savedLivingArchers = this.livingArchers;
+    	int savedFootmanHP = this.footmanHP;
+    	int savedArcherHP = this.archerHP;
+    	
+    	// Apply every unit's action in place
+    	for (int unit = 0; unit < changedUnits.length; unit++)
+    	{
+    		int unitIndex = firstUnit + unit;
+    		int actionCode = (childMove >>> (unit * MOVE_BITS)) & ((1 << MOVE_BITS) - 1);
+    		
+    		if (actionCode >= ATTACK_CODE)
+    		{
+    			int target = actionCode - ATTACK_CODE + (this.footmenToMove ? this.numFootmen : 0);
+    			changedUnits[unit] = target;
+    			previousValues[unit] = attack(unitIndex, target);
+    			stateActions.put(this.unitIds[unitIndex], createAction(unitIndex, actionCode));
+    		}
+    		else if (actionCode != IDLE && !isOccupied(getX(this.units[unitIndex]) + DIRECTIONS[actionCode - 1].xComponent(),
+    				getY(this.units[unitIndex]) + DIRECTIONS[actionCode - 1].yComponent()))
+    		{
+    			changedUnits[unit] = unitIndex;
+    			previousValues[unit] = makeMove(unitIndex, DIRECTIONS[actionCode - 1]);
+    			stateActions.put(this.unitIds[unitIndex], createAction(unitIndex, actionCode));
+    		}
+    		else
+    		{
+    			changedUnits[unit] = -1;
+    			childMove &= ~encodeAction(unit, (1 << MOVE_BITS) - 1);	// IDLE, or a step into a cell just taken
+    		}
+    	}
+    	
+    	// Copy the result into the child.  It is only evaluated if the search asks for its utility, attacks
+    	// included: their outcome is worked out by the quiescence search rather than assumed to win.
+    	GameState nextGameState = new GameState(this, Double.NaN, childMove);
+    	nextGameState.footmenToMove = !this.footmenToMove;
+    	nextGameState.pendingMove = 0;
+    	nextGameState.pendingUnits = 0;
+    	
+    	// Take the actions back in reverse order
+    	for (int unit = changedUnits.length - 1; unit >= 0; unit--)
+    	{
+    		if (changedUnits[unit] >= 0)
+    		{
+    			unmakeMove(changedUnits[unit], previousValues[unit]);
+    		}
+    	}
+    	this.distanceSum = savedDistanceSum;
+    	this.livingFootmen = savedLivingFootmen;
+    	this.livingArchers = savedLivingArchers;
+    	this.footmanHP = savedFootmanHP;
+    	this.archerHP = savedArcherHP;
+    	
+    	return new GameStateChild(stateActions, nextGameState);
+    }
+    
+    /**
+     * @return The SEPIA action for a unit's action code, which must not be IDLE
+     */
+    private Action createAction(int unitIndex, int actionCode)
+    {
+    	if (actionCode >= ATTACK_CODE)
+    	{
+    		int target = actionCode - ATTACK_CODE + (unitIndex < this.numFootmen ? this.numFootmen : 0);
+    		return Action.createPrimitiveAttack(this.unitIds[unitIndex], this.unitIds[target]);
+    	}
+    	return Action.createPrimitiveMove(this.unitIds[unitIndex], DIRECTIONS[actionCode - 1]);
+    }
+    
+    /**
+     * @return True if either side has been wiped out
+     */
+    public boolean isGameOver()
+    {
+    	return this.livingFootmen == 0 || this.livingArchers == 0;
+    }
+
+    /**
+     * Make this state a copy of another state of the same game, without allocating.  Used to reset a
+     * scratch state before every playout.
+     * @param other A state of the same game, e.g. a child of the same root
+     */
+    public void setTo(GameState other)
+    {
+    	System.arraycopy(other.units, 0, this.units, 0, this.units.length);
+    	this.hashKey = other.hashKey;
+    	this.distanceSum = other.distanceSum;
+    	this.livingFootmen = other.livingFootmen;
+    	this.livingArchers = other.livingArchers;
+    	this.footmanHP = other.footmanHP;
+    	this.archerHP = other.archerHP;
+    	this.footmenToMove = other.footmenToMove;
+    	this.pendingMove = other.pendingMove;
+    	this.pendingUnits = other.pendingUnits;
+    	this.utility = other.utility;
+    	this.move = other.move;
+    }
+
+    /**
+     * Play one random turn of the side to move in place, for the playouts of a Monte Carlo search.
+     * Every living unit attacks a random enemy in range if there is one, since attacking is almost
+     * always right for either side, and otherwise steps in a random free direction.  Units move one
+     * after the other, so they never step into the same cell.  Nothing is allocated.
+     * @param random The source of the random choices
+     */
+    public void playRandomMove(Random random)
+    {
+    	int firstUnit = this.footmenToMove ? 0 : this.numFootmen;
+    	int lastUnit = this.footmenToMove ? this.numFootmen : this.units.length;
+    	int firstEnemy = this.footmenToMove ? this.numFootmen : 0;
+    	int lastEnemy = this.footmenToMove ? this.units.length : this.numFootmen;
+
+    	for (int unit = firstUnit; unit < lastUnit; unit++)
+    	{
+    		if (!isAlive(unit))
+    		{
+    			continue;
+    		}
+
+    		int targets = 0;
+    		for (int enemy = firstEnemy; enemy < lastEnemy; enemy++)
+    		{
+    			targets += isAlive(enemy) && isInRange(unit, enemy) ? 1 : 0;
+    		}
+    		if (targets > 0)
+    		{
+    			int target = random.nextInt(targets);
+    			for (int enemy = firstEnemy; enemy < lastEnemy; enemy++)
+    			{
+    				if (isAlive(enemy) && isInRange(unit, enemy) && target-- == 0)
+    				{
+    					attack(unit, enemy);
+    					break;
+    				}
+    			}
+    			continue;
+    		}
+
+    		// Count the free directions first, then walk to the chosen one
+    		int x = getX(this.units[unit]);
+    		int y = getY(this.units[unit]);
+    		int legalDirections = this.distanceField.getLegalDirections(x, y);
+    		int freeDirections = 0;
+    		for (int direction = 0; direction < DIRECTIONS.length; direction++)
+    		{
+    			if ((legalDirections & (1 << direction)) != 0 && !isOccupied(x + DIRECTIONS[direction].xComponent(), y + DIRECTIONS[direction].yComponent()))
+    			{
+    				freeDirections |= 1 << direction;
+    			}
+    		}
+    		if (freeDirections != 0)
+    		{
+    			int step = random.nextInt(Integer.bitCount(freeDirections));
+    			int direction = Integer.numberOfTrailingZeros(freeDirections);
+    			for (; step > 0; step--)
+    			{
+    				freeDirections &= freeDirections - 1;
+    				direction = Integer.numberOfTrailingZeros(freeDirections);
+    			}
+    			makeMove(unit, DIRECTIONS[direction]);
+    		}
+    	}
+
+    	this.footmenToMove = !this.footmenToMove;
+    	this.move = NO_MOVE;
+    	this.utility = Double.NaN;
+    }
+
+    /**
+     * @return The index of an action code in a unit's options, or -1 if it is not one of them
+     */
+    private static int indexOf(int[] options, int actionCode)
+    {
+    	for (int option = 0; option < options.length; option++)
+    	{
+    		if (options[option] == actionCode)
+    		{
+    			return option;
+    		}
+    	}
+    	return -1;
+    }
+    
+    /**
+     * Advance to the next combination of per-unit options, like an odometer.
+     * @param choice The option index of every unit, updated in place
+     * @param options The options of every unit
+     * @return False once every combination has been visited
+     */
+    private static boolean nextCombination(int[] choice, int[][] options)
+    {
+    	for (int unit = 0; unit < choice.length; unit++)
+    	{
+    		if (++choice[unit] < options[unit].length)
+    		{
+    			return true;
+    		}
+    		choice[unit] = 0;
+    	}
+    	return false;
+    }
+    
+    /**
+     * @return True if both action codes are steps and the two units step into the same cell
+     */
+    private boolean isSameStep(int unit, int actionCode, int otherUnit, int otherActionCode)
+    {
+    	if (actionCode == IDLE || actionCode >= ATTACK_CODE || otherActionCode == IDLE || otherActionCode >= ATTACK_CODE)
+    	{
+    		return false;
+    	}
+    	Direction step = DIRECTIONS[actionCode - 1];
+    	Direction otherStep = DIRECTIONS[otherActionCode - 1];
+    	return getX(this.units[unit]) + step.xComponent() == getX(this.units[otherUnit]) + otherStep.xComponent()
+    			&& getY(this.units[unit]) + step.yComponent() == getY(this.units[otherUnit]) + otherStep.yComponent();
+    }
+    
+    /**
+     * Resolve one attack in place.
+     * @param attacker The index of the attacking unit
+     * @param target The index of the unit being attacked
+     * @return The packed value of the target before the attack, to be handed back to unmakeMove()
+     */
+    private int attack(int attacker, int target)
+    {
+    	int previous = this.units[target];
+    	int hp = Math.max(getHP(previous) - getDamage(attacker, target), 0);
+    	setUnit(target, pack(getX(previous), getY(previous), hp));
+    	return previous;
+    }
+    
+    /**
+     * The damage one unit does to another on average.  SEPIA's damage is the basic attack reduced by the
+     * target's armor, but never below 1, plus the piercing attack, and then it subtracts a roll of
+     * Random.nextInt() % ((damage + 2) / 2).  nextInt() is as often negative as positive, so the roll
+     * moves the damage up or down by at most half of it, and this damage before the roll is the mean.
+     * The search plays every attack with it rather than branching on the roll.
+     */
+    private int getDamage(int attacker, int target)
+    {
+    	return Math.max(this.basicAttack[attacker] - this.armor[target], 1) + this.piercingAttack[attacker];
+    }
+    
+    /**
+     * Check if a unit can attack another from where they stand.  Ranges are measured in king moves.
+     */
+    private boolean isInRange(int attacker, int target)
+    {
+    	int dx = Math.abs(getX(this.units[attacker]) - getX(this.units[target]));
+    	int dy = Math.abs(getY(this.units[attacker]) - getY(this.units[target]));
+    	return Math.max(dx, dy) <= this.range[attacker];
+    }
+    
+    /**
+     * @return True if the unit still has HP left
+     */
+    private boolean isAlive(int unitIndex)
+    {
+    	return getHP(this.units[unitIndex]) > 0;
+    }
+    
+    /**
+     * Move a unit one step in the given direction in place.
+     * @param unitIndex The index of the unit in the packed unit array
+     * @param direction The direction to move in
+     * @return The packed value of the unit before the move, to be handed back to unmakeMove()
+     */
+    private int makeMove(int unitIndex, Direction direction)
+    {
+    	int previous = this.units[unitIndex];
+    	setUnit(unitIndex, pack(getX(previous) + direction.xComponent(), getY(previous) + direction.yComponent(), getHP(previous)));
+    	return previous;
+    }
+    
+    /**
+     * Take back a move made with makeMove() or attack().  Only the unit and the hash key are restored,
+     * the caller restores the evaluation features it saved before the move.
+     * @param unitIndex The index of the unit in the packed unit array
+     * @param previous The packed value returned by makeMove()
+     */
+    private void unmakeMove(int unitIndex, int previous)
+    {
+    	this.hashKey ^= getUnitKey(unitIndex, this.units[unitIndex]) ^ getUnitKey(unitIndex, previous);
+    	this.units[unitIndex] = previous;
+    }
+    
+    /**
+     * Replace a packed unit and update the hash key and evaluation features to match.  Only the
+     * changed unit's share of the features is recomputed, not the whole evaluation.
+     */
+    private void setUnit(int unitIndex, int packedUnit)
+    {
+    	int previous = this.units[unitIndex];
+    	int aliveChange = (getHP(packedUnit) > 0 ? 1 : 0) - (getHP(previous) > 0 ? 1 : 0);
+    	
+    	if (unitIndex < this.numFootmen)
+    	{
+    		// A footman only changes its own distance
+    		this.distanceSum += getNearestArcherDistance(unitIndex, packedUnit, -1, 0) - getNearestArcherDistance(unitIndex, previous, -1, 0);
+    		this.livingFootmen += aliveChange;
+    		this.footmanHP += getHP(packedUnit) - getHP(previous);
+    	}
+    	else
+    	{
+    		// An archer can change which archer is nearest to every footman
+    		for (int footman = 0; footman < this.numFootmen; footman++)
+    		{
+    			this.distanceSum += getNearestArcherDistance(footman, this.units[footman], unitIndex, packedUnit)
+    					- getNearestArcherDistance(footman, this.units[footman], -1, 0);
+    		}
+    		this.livingArchers += aliveChange;
+    		this.archerHP += getHP(packedUnit) - getHP(previous);
+    	}
+    	
+    	this.hashKey ^= getUnitKey(unitIndex, previous) ^ getUnitKey(unitIndex, packedUnit);
+    	this.units[unitIndex] = packedUnit;
+    }
+    
+    /**
+     * Get the combined Zobrist key of a unit's cell and HP.
+     * @param unitIndex The index of the unit in the packed unit array
+     * @param packedUnit The packed position and HP of the unit
+     * @return The Zobrist key of the unit
+     */
+    private long getUnitKey(int unitIndex, int packedUnit)
+    {
+    	// Cells are numbered like the distance field's grid, which has a row and column past the extents
+    	int cell = getY(packedUnit) * (this.xExtent + 1) + getX(packedUnit);
+    	int hp = Math.min(getHP(packedUnit), this.maxHP);
+    	
+    	int positionKeys = this.units.length * getCellCount();
+    	return this.zobristKeys[unitIndex * getCellCount() + cell] ^ this.zobristKeys[positionKeys + unitIndex * (this.maxHP + 1) + hp];
+    }
+    
+    /**
+     * @return The number of cells a unit can occupy, including the row and column on the far edges
+     */
+    private int getCellCount()
+    {
+    	return (this.xExtent + 1) * (this.yExtent + 1);
+    }
+    
+    /**
+     * Place a single unit's action code at its position in a joint move.
+     * @param sideIndex The index of the unit among the units of its own side
+     * @param actionCode The action code
+     * @return The joint move bits for this unit
+     */
+    private static int encodeAction(int sideIndex, int actionCode)
+    {
+    	return actionCode << (sideIndex * MOVE_BITS);
+    }
+    
+    /**
+     * Pack a unit's position and HP into a single int.
+     */
+    private static int pack(int x, int y, int hp)
+    {
+    	return (x << X_SHIFT) | (y << Y_SHIFT) | (hp & HP_MASK);
+    }
+    
+    private static int getX(int packedUnit)
+    {
+    	return (packedUnit >>> X_SHIFT) & COORDINATE_MASK;
+    }
+    
+    private static int getY(int packedUnit)
+    {
+    	return (packedUnit >>> Y_SHIFT) & COORDINATE_MASK;
+    }
+    
+    private static int getHP(int packedUnit)
+    {
+    	return packedUnit & HP_MASK;
+    }
+    
+    /**
+     * @return True if a living unit stands in the cell
+     */
+    private boolean isOccupied(int x, int y)
+    {
+    	for (int unit = 0; unit < this.units.length; unit++)
+    	{
+    		if (isAlive(unit) && getX(this.units[unit]) == x && getY(this.units[unit]) == y)
+    		{
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Check if every unit stands where it stands in another state of the same episode.  HP is not
+     * compared, SEPIA rolls the damage of every attack.
+     * @param other A state of the same episode
+     * @return True if every unit is in the same cell in both states
+     */
+    public boolean hasSamePositions(GameState other)
+    {
+    	for (int unit = 0; unit < this.units.length; unit++)
+    	{
+    		if (getX(this.units[unit]) != getX(other.units[unit]) || getY(this.units[unit]) != getY(other.units[unit]))
+    		{
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Describe a joint move of the side to move in this state, e.g. for printing a principal variation.
+     * @param move A joint move made from this state
+     * @return What every unit of the side to move does
+     */
+    public String describeMove(int move)
+    {
+    	int firstUnit = this.footmenToMove ? 0 : this.numFootmen;
+    	int firstEnemy = this.footmenToMove ? this.numFootmen : 0;
+    	int numMoving = this.footmenToMove ? this.numFootmen : this.units.length - this.numFootmen;
+    	
+    	// In factored mode a move from this state is only the next unit's action
+    	int firstSlot = this.factoredMoves ? this.pendingUnits : 0;
+    	int lastSlot = this.factoredMoves ? Math.min(this.pendingUnits + 1, numMoving) : numMoving;
+    	
+    	StringBuilder description = new StringBuilder();
+    	for (int unit = firstSlot; unit < lastSlot; unit++)
+    	{
+    		int actionCode = (move >>> (unit * MOVE_BITS)) & ((1 << MOVE_BITS) - 1);
+    		description.append(unit > firstSlot ? ", " : "").append(this.footmenToMove ? "Footman " : "Archer ").append(this.unitIds[firstUnit + unit]);
+    		
+    		if (actionCode >= ATTACK_CODE)
+    		{
+    			description.append(" attacks " + this.unitIds[firstEnemy + actionCode - ATTACK_CODE]);
+    		}
+    		else if (actionCode != IDLE)
+    		{
+    			description.append(" moves " + DIRECTIONS[actionCode - 1]);
+    		}
+    		else
+    		{
+    			description.append(" waits");
+    		}
+    	}
+    	return description.toString();
+    }
+    
+    /**
+     * Prints the coordinates of each footman's cell location
+     * @return
+     */
+    public String getFootmanCoordinates()
+    {
+    	StringBuilder footmanCoordinates = new StringBuilder();
+    	for (int footman = 0; footman < this.numFootmen; footman++)
+    	{
+    		footmanCoordinates.append("Footman " + this.unitIds[footman] + " is at node: (" + getX(this.units[footman]) + ", " + getY(this.units[footman]) + "), ");
+    	}
+    	return footmanCoordinates.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Evaluates a state as a weighted sum of EvaluationFeatures.  Only the features with a non-zero
+ * weight are computed, so a feature that is switched off costs nothing per node, and the weights are
+ * kept in a plain array in the order the features are computed.
+ *
+ * The weights start at each feature's default and can be overridden from a weights file, a
+ * java.util.Properties file with one key = weight line per feature, e.g.
+ *
+ * distance = 100
+ * cornered = 25
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class LinearEvaluator implements Evaluator
+{
+	// The evaluator with every feature at its default weight
+	public static final LinearEvaluator DEFAULT = new LinearEvaluator(getDefaultWeights());
+
+	private final double[] weights;	// The weight of every feature, indexed by ordinal
+	private final EvaluationFeature[] activeFeatures;	// The features with a non-zero weight
+	private final double[] activeWeights;	// Their weights, indexed the same way
+
+	/**
+	 * @param weights The weight of every feature, indexed by EvaluationFeature ordinal
+	 */
+	public LinearEvaluator(double[] weights)
+	{
+		EvaluationFeature[] features = EvaluationFeature.values();
+		if (weights.length != features.length)
+		{
+			throw new IllegalArgumentException("Expected " + features.length + " weights, got " + weights.length);
+		}
+		this.weights = weights.clone();
+
+		int count = 0;
+		EvaluationFeature[] active = new EvaluationFeature[features.length];
+		double[] activeWeights = new double[features.length];
+		for (EvaluationFeature feature : features)
+		{
+			if (weights[feature.ordinal()] != 0)
+			{
+				active[count] = feature;
+				activeWeights[count++] = weights[feature.ordinal()];
+			}
+		}
+		this.activeFeatures = Arrays.copyOf(active, count);
+		this.activeWeights = Arrays.copyOf(activeWeights, count);
+	}
+
+	@Override
+	public double evaluate(GameState state)
+	{
+		double utility = 0;
+		for (int i = 0; i < activeFeatures.length; i++)
+		{
+			utility += activeWeights[i] * state.getFeature(activeFeatures[i]);
+		}
+		return utility;
+	}
+
+	public double getWeight(EvaluationFeature feature)
+	{
+		return weights[feature.ordinal()];
+	}
+
+	/**
+	 * @return A new array with the default weight of every feature, indexed by ordinal
+	 */
+	public static double[] getDefaultWeights()
+	{
+		EvaluationFeature[] features = EvaluationFeature.values();
+		double[] weights = new double[features.length];
+		for (EvaluationFeature feature : features)
+		{
+			weights[feature.ordinal()] = feature.getDefaultWeight();
+		}
+		return weights;
+	}
+
+	/**
+	 * Read a weights file over an array of weights.  Features the file does not mention keep their weight.
+	 * @param fileName The weights file
+	 * @param weights The weight of every feature, indexed by ordinal, updated in place
+	 * @throws IOException If the file cannot be read
+	 * @throws IllegalArgumentException If the file names an unknown feature or a weight is not a number
+	 */
+	public static void readWeights(String fileName, double[] weights) throws IOException
+	{
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(fileName);
+		try
+		{
+			properties.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		for (String key : properties.stringPropertyNames())
+		{
+			weights[EvaluationFeature.fromKey(key).ordinal()] = Double.parseDouble(properties.getProperty(key).trim());
+		}
+	}
+
+	/**
+	 * @return The weights as key=weight pairs, in feature order
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder description = new StringBuilder();
+		for (EvaluationFeature feature : EvaluationFeature.values())
+		{
+			description.append(description.length() == 0 ? "" : " ").append(feature.getKey()).append('=').append(weights[feature.ordinal()]);
+		}
+		return description.toString();
+	}
+}
@@ -6,18 +6,110 @@ import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.util.Direction;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class MinimaxAlphaBeta extends Agent 
 {
 
-    private final int numPlys;
+    private final int numPlys;	// The deepest iteration of the iterative deepening search
+    private final long timeBudgetMillis;	// The wall-clock budget of each turn, or 0 for no limit
+    private final TranspositionTable transpositionTable;	// Shared by every search this agent runs
+    private final TranspositionTable.Entry ttEntry = new TranspositionTable.Entry();	// Reused for every probe
+    private final boolean traceEnabled;	// Print every node of the search as it is visited
+    private final boolean statisticsEnabled;	// Print the search statistics once per turn
+    private final boolean pvsEnabled;	// Scout all but the first child of a node with a null window
+    private final double aspirationWidth;	// Half the width of the root window around the last score, 0 for a full window
+    private final boolean factoredMoves;	// Search the action of one unit at a time, see GameState.getChildIterator()
+    private final boolean pruneDominatedMoves;	// Leave out the footman steps another step beats for distance to every archer
+    private final SearchStatistics statistics;	// This searcher's counters for the current turn
+    private final Evaluator evaluator;	// Scores the states at the horizon
+    private final PositionTable positionTable;	// Positions searched offline, probed before searching, or null
+    private final PositionTable.Entry tableEntry = new PositionTable.Entry();	// Reused for every probe
+    
+    // Lazy SMP: helper searchers run the same iterative deepening on other threads and share the
+    // transposition table, so the main search finds more of its subtrees already resolved
+    private final MinimaxAlphaBeta[] helpers;	// One searcher per helper thread, empty when single threaded
+    private ForkJoinPool helperPool;	// Runs the helpers, started by the first turn and shut down at the end of the episode
+    private final int helperDepthOffset;	// Helpers start this many plys deeper so they do not all duplicate the main search
+    private volatile boolean stopRequested;	// Set by the main searcher when a helper should stop
+    
+    // Iterative deepening state for the current turn
+    private long deadline = Long.MAX_VALUE;	// System.nanoTime() after which the current iteration is abandoned, never until a turn sets it
+    private boolean searchAborted;	// Set once the deadline passes, unwinding the search
+    private int rootBestMove = GameState.NO_MOVE;	// The best root move of the last root search, even a failed one
+    private GameStateChild rootBestChild;	// The root child that move leads to
+    private final int quiescencePlys;	// The most plys of attacks searched past the horizon
+    private final boolean reuseEnabled;	// Keep the transposition table and expected line from one turn to the next
+    private final double[] rootValues;	// The root value found at each depth, kept across turns to center the aspiration windows
+    private int[][] principalVariationMoves = new int[1][1];	// Row n holds the best line found from the node at ply n
+    private int[] principalVariationLengths = new int[1];	// The length of each row's line
+    private int[] principalVariation = new int[0];	// The line from the root of the last completed iteration
+    
+    // Reuse between iterations and turns: the line the last search found is searched first
+    private int[] expectedLine = new int[0];	// The moves expected at each ply, starting at the root
+    private boolean followingExpectedLine;	// Every move from the root to the current node was on the expected line
+    private GameState predictedRoot;	// The next turn's root if both sides play the last principal variation
+    private int[] predictedLine = new int[0];	// The rest of the last principal variation after that
+    private int predictedPlys;	// How many moves of the last principal variation lead to the predicted root
+    
+    // Move ordering.  Each searcher keeps its own tables so helper threads never share them.
+    private final int[][] killerMoves = new int[MAX_PLY][KILLERS_PER_PLY];	// Recent cutoff moves at each ply
+    private final int[] historyScores = new int[2 * UNITS_PER_MOVE * ACTION_CODES];	// Indexed by side, unit slot and action code
+    
+    // XORed into a state's hash when the minimizer is to move
+    private static final long MINIMIZER_TO_MOVE_KEY = 0x9E3779B97F4A7C15L;
+    
+    // The clock is read once every this many nodes (must be a power of two)
+    private static final int CLOCK_CHECK_INTERVAL = 256;
+    
+    // Move ordering tables
+    private static final int MAX_PLY = 128;	// Killer moves are only kept for this many plys from the root
+    private static final int KILLERS_PER_PLY = 2;
+    private static final int UNITS_PER_MOVE = Integer.SIZE / GameState.MOVE_BITS;	// Unit slots in a joint move
+    private static final int ACTION_CODES = 1 << GameState.MOVE_BITS;	// Distinct action codes per unit slot
+    
+    // Ordering scores.  History scores are halved every turn and stay far below KILLER_SCORE.
+    private static final int EXPECTED_MOVE_SCORE = Integer.MAX_VALUE;
+    private static final int HASH_MOVE_SCORE = Integer.MAX_VALUE - 1;
+    private static final int KILLER_SCORE = 1 << 30;
 
+    /**
+     * The first argument is the number of plys, which is the deepest iteration that will be searched.
+     * Any further arguments are optional name=value settings:
+     *
+     * timeMs: the wall-clock budget of each turn in milliseconds, 0 to always search to full depth (default 0)
+     * pvs: use principal variation search rather than plain alpha-beta (default true)
+     * qPlys: the most plys of attacks the quiescence search looks at past the last full ply, 0 to
+     *     evaluate the leaves as they are (default 4)
+     * reuse: keep the transposition table and the principal variation from one turn to the next (default true)
+     * aspiration: half the width of the aspiration window around the last root value, 0 to always search
+     *     the root with a full window (default 0.5)
+     * threads: the number of search threads, all sharing one transposition table (default 1)
+     * stats: print the search statistics once per turn (default true)
+     * trace: print every node the search visits, for debugging (default false)
+     * ttMB: the memory cap of the transposition table in megabytes (default 16)
+     * ttReplace: the transposition table replacement policy, always, depth_preferred or aged (default aged)
+     * weights: a file of evaluation feature weights, see LinearEvaluator (default none)
+     * <key>Weight: the weight of the evaluation feature with that key, e.g. distanceWeight=100, which
+     *     overrides the weights file (defaults in EvaluationFeature)
+     * factored: search the actions of the units of a side one unit at a time within each ply, rather
+     *     than every joint move at once (default false)
+     * prune: leave out every footman step that another step of the same footman beats, ending at least
+     *     as close to every archer and closer to one (default false)
+     * table: a position table written by PositionTableBuilder.  Turns that start in one of its positions
+     *     play its move without searching, if it was built for this map at least numPlys deep (default none)
+     */
     public MinimaxAlphaBeta(int playernum, String[] args)
     {
         super(playernum);	// 0 is footman, 1 is archer
@@ -29,6 +121,136 @@ public class MinimaxAlphaBeta extends Agent
         }
 
         this.numPlys = Integer.parseInt(args[0]);
+        this.timeBudgetMillis = Long.parseLong(getOption(args, "timeMs", "0"));
+        
+        int ttMegabytes = Integer.parseInt(getOption(args, "ttMB", "16"));
+        TranspositionTable.ReplacementPolicy replacementPolicy = TranspositionTable.ReplacementPolicy.fromString(getOption(args, "ttReplace", "aged"));
+        this.transpositionTable = new TranspositionTable(ttMegabytes, replacementPolicy);
+        this.traceEnabled = Boolean.parseBoolean(getOption(args, "trace", "false"));
+        this.statisticsEnabled = Boolean.parseBoolean(getOption(args, "stats", "true"));
+        this.statistics = new SearchStatistics(this.numPlys, MAX_PLY);
+        this.pvsEnabled = Boolean.parseBoolean(getOption(args, "pvs", "true"));
+        this.aspirationWidth = Double.parseDouble(getOption(args, "aspiration", "0.5"));
+        this.factoredMoves = Boolean.parseBoolean(getOption(args, "factored", "false"));
+        this.pruneDominatedMoves = Boolean.parseBoolean(getOption(args, "prune", "false"));
+        this.quiescencePlys = Integer.parseInt(getOption(args, "qPlys", "4"));
+        this.evaluator = createEvaluator(args);
+        this.positionTable = openPositionTable(getOption(args, "table", null));
+        this.reuseEnabled = Boolean.parseBoolean(getOption(args, "reuse", "true"));
+        this.rootValues = new double[this.numPlys + 1];
+        Arrays.fill(this.rootValues, Double.NaN);
+        this.helperDepthOffset = 0;
+        
+        int threads = Math.max(1, Integer.parseInt(getOption(args, "threads", "1")));
+        this.helpers = new MinimaxAlphaBeta[threads - 1];
+        for (int i = 0; i < this.helpers.length; i++)
+        {
+        	this.helpers[i] = new MinimaxAlphaBeta(this, (i + 1) % 2);
+        }
+    }
+    
+    /**
+     * Create a helper searcher for the lazy SMP search.  It shares the settings and the transposition
+     * table of the main searcher but keeps its own search state and never prints a trace.
+     * @param owner The main searcher
+     * @param depthOffset How many plys deeper than the main search this helper starts
+     */
+    private MinimaxAlphaBeta(MinimaxAlphaBeta owner, int depthOffset)
+    {
+    	super(owner.getPlayerNumber());
+    	this.numPlys = owner.numPlys;
+    	this.timeBudgetMillis = owner.timeBudgetMillis;
+    	this.transpositionTable = owner.transpositionTable;
+    	this.traceEnabled = false;
+    	this.statisticsEnabled = false;
+    	this.statistics = new SearchStatistics(this.numPlys, MAX_PLY);
+    	this.pvsEnabled = owner.pvsEnabled;
+    	this.aspirationWidth = 0;
+    	this.factoredMoves = owner.factoredMoves;
+    	this.pruneDominatedMoves = owner.pruneDominatedMoves;
+    	this.reuseEnabled = owner.reuseEnabled;
+    	this.quiescencePlys = owner.quiescencePlys;
+    	this.evaluator = owner.evaluator;
+    	this.positionTable = null;
+    	this.rootValues = new double[0];
+    	this.helperDepthOffset = depthOffset;
+    	this.helpers = new MinimaxAlphaBeta[0];
+    }
+    
+    /**
+     * Build the evaluator from the default feature weights, then the weights file, then the weights
+     * given as agent arguments.
+     * @param args The agent arguments
+     * @return The evaluator the search scores its leaves with
+     */
+    static Evaluator createEvaluator(String[] args)
+    {
+    	double[] weights = LinearEvaluator.getDefaultWeights();
+    	String weightsFile = getOption(args, "weights", null);
+    	if (weightsFile != null)
+    	{
+    		try
+    		{
+    			LinearEvaluator.readWeights(weightsFile, weights);
+    		}
+    		catch (IOException e)
+    		{
+    			System.err.println("Could not read the evaluation weights from " + weightsFile + ": " + e.getMessage());
+    			System.exit(1);
+    		}
+    	}
+    	for (EvaluationFeature feature : EvaluationFeature.values())
+    	{
+    		String weight = getOption(args, feature.getKey() + "Weight", null);
+    		if (weight != null)
+    		{
+    			weights[feature.ordinal()] = Double.parseDouble(weight);
+    		}
+    	}
+    	return new LinearEvaluator(weights);
+    }
+    
+    /**
+     * Map the position table given as an agent argument.
+     * @param fileName The table file, or null for none
+     * @return The table, or null if there is none
+     */
+    private static PositionTable openPositionTable(String fileName)
+    {
+    	if (fileName == null)
+    	{
+    		return null;
+    	}
+    	try
+    	{
+    		return PositionTable.open(fileName);
+    	}
+    	catch (IOException e)
+    	{
+    		System.err.println("Could not open the position table " + fileName + ": " + e.getMessage());
+    		System.exit(1);
+    		return null;
+    	}
+    }
+    
+    /**
+     * Find an optional name=value agent argument.
+     * @param args The agent arguments
+     * @param name The name of the setting
+     * @param defaultValue The value to use if the setting is not given
+     * @return The value of the setting
+     */
+    static String getOption(String[] args, String name, String defaultValue)
+    {
+    	for (int i = 1; i < args.length; i++)
+    	{
+    		int separator = args[i].indexOf('=');
+    		if (separator > 0 && args[i].substring(0, separator).trim().equalsIgnoreCase(name))
+    		{
+    			return args[i].substring(separator + 1).trim();
+    		}
+    	}
+    	return defaultValue;
     }
 
     @Override
@@ -39,18 +261,331 @@ public class MinimaxAlphaBeta extends Agent
     @Override
     public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) 
     {
-        GameStateChild bestChild = alphaBetaSearch(new GameStateChild(newstate),
-                numPlys,
-                Double.NEGATIVE_INFINITY,
-                Double.POSITIVE_INFINITY,
-                true);
-        
+    	long turnStart = System.nanoTime();	// The budget covers building the root state too
+    	GameState rootState = new GameState(newstate, evaluator);
+    	GameStateChild bestChild = probePositionTable(rootState);
+    	if (bestChild != null)
+    	{
+    		if (statisticsEnabled)
+    		{
+    			System.out.println("Position table hit: [" + rootState.describeMove(bestChild.state.getMove()) + "] with value " + tableEntry.value);
+    		}
+    	}
+    	else
+    	{
+    		bestChild = searchPosition(rootState, turnStart);
+    		if (statisticsEnabled)
+    		{
+    			System.out.println(statistics);
+    			System.out.println(describePrincipalVariation(rootState));
+    		}
+    	}
         System.out.println(bestChild.state.getFootmanCoordinates() + " was chosen for the action.");     
         return bestChild.action;     
     }
+    
+    /**
+     * Look the root up in the position table.  Only a table built for this map and searched at least as
+     * deep as this agent would search is used.
+     * @param rootState The state at the root of this turn
+     * @return The child the table's move leads to with the table's value, or null to search
+     */
+    private GameStateChild probePositionTable(GameState rootState)
+    {
+    	if (positionTable == null || positionTable.getDepth() < numPlys || !rootState.isFootmenToMove()
+    			|| positionTable.getMapKey() != rootState.getMapKey() || !positionTable.probe(rootState.getTableKey(), tableEntry))
+    	{
+    		return null;
+    	}
+    	
+    	// The entry was found for a state with the same positions, so its move is legal here too unless two keys collided
+    	GameStateChild child = findChild(rootState, tableEntry.move);
+    	if (child == null)
+    	{
+    		return null;
+    	}
+    	
+    	// There is no search this turn, so there is no line to expect next turn either
+    	statistics.startTurn();
+    	principalVariation = new int[] { tableEntry.move };
+    	predictedRoot = null;
+    	predictedLine = new int[0];
+    	return new GameStateChild(child.action, child.state.withUtility(tableEntry.value));
+    }
+    
+    /**
+     * Find the best move from a state with an iterative deepening search, sharing the transposition
+     * table, move ordering tables and expected line with the searches of earlier turns.  This is
+     * middleStep() without SEPIA's state view, so offline tools can search their own states.
+     * @param rootState The state to search from
+     * @return The best child of the state with the value found for it
+     */
+    GameStateChild searchPosition(GameState rootState)
+    {
+    	return searchPosition(rootState, System.nanoTime());
+    }
+    
+    /**
+     * Search a position within the time budget of a turn that started earlier.  Even the first
+     * iteration is abandoned once the budget is spent, and then the best root move it had found so
+     * far is played, so a turn never runs far past its budget.
+     * @param rootState The state to search from
+     * @param turnStart System.nanoTime() when the turn started
+     * @return The best child of the state with the value found for it, or with a meaningless value
+     * if not even the first iteration finished
+     */
+    private GameStateChild searchPosition(GameState rootState, long turnStart)
+    {
+    	deadline = timeBudgetMillis > 0 ? turnStart + timeBudgetMillis * 1000000L : Long.MAX_VALUE;
+    	statistics.startTurn(turnStart);
+    	rootBestMove = GameState.NO_MOVE;
+    	principalVariation = new int[0];
+    	ageHistoryScores();
+    	
+    	GameStateChild root = new GameStateChild(null, rootState.withMoveGeneration(factoredMoves, pruneDominatedMoves));
+    	GameStateChild bestChild = root;
+    	
+    	// The states searched last turn hash the same this turn, so their transposition table entries
+    	// still hold.  If both sides moved the way the last search expected, the rest of its line is the
+    	// best guess at this turn's line and is searched first, and its killer moves are that many plys
+    	// closer to the root.  The attacks on the way may have done other damage than expected.
+    	expectedLine = new int[0];
+    	if (reuseEnabled && predictedRoot != null && root.state.hasSamePositions(predictedRoot))
+    	{
+    		expectedLine = predictedLine;
+    		shiftKillerMoves(predictedPlys);
+    		statistics.setPredictedRoot(true);
+    	}
+    	else
+    	{
+    		clearKillerMoves();
+    	}
+    	if (reuseEnabled)
+    	{
+    		transpositionTable.newSearch();
+    	}
+    	else
+    	{
+    		transpositionTable.clear();
+    	}
+    	List<ForkJoinTask<?>> helperTasks = startHelpers(root.state);
+    	
+    	// Iterative deepening: search one ply deeper each time until the budget runs out.  Each iteration
+    	// searches the previous iteration's best root move first, and the transposition table hands it the
+    	// rest of the principal variation.  The result of an abandoned iteration is thrown away.
+    	for (int depth = 1; depth <= numPlys; depth++)
+    	{
+    		searchAborted = false;
+    		statistics.startIteration(depth);
+    		
+    		GameStateChild result = searchRoot(root, depth);
+    		
+    		statistics.endIteration(searchAborted);
+    		if (searchAborted)
+    		{
+    			if (depth == 1)
+    			{
+    				bestChild = rootBestChild != null ? rootBestChild : getFirstChild(root);
+    			}
+    			break;
+    		}
+    		bestChild = result;
+    		principalVariation = Arrays.copyOf(principalVariationMoves[0], principalVariationLengths[0]);
+    		expectedLine = principalVariation;
+    	}
+    	stopHelpers(helperTasks);
+    	predictNextRoot(root.state);
+    	return factoredMoves ? getJointChild(bestChild) : bestChild;
+    }
+    
+    /**
+     * @return The first child of the root, or the root itself if it has none
+     */
+    private static GameStateChild getFirstChild(GameStateChild root)
+    {
+    	Iterator<GameStateChild> children = root.state.getChildIterator();
+    	return children.hasNext() ? children.next() : root;
+    }
+    
+    /**
+     * In factored mode the best child of the root only holds the first unit's action.  Follow the
+     * principal variation through the other units' actions to the child that holds all of them.
+     * @param bestChild The best child of the root, with the root's value
+     * @return The child of the root's joint move with the root's value
+     */
+    private GameStateChild getJointChild(GameStateChild bestChild)
+    {
+    	GameStateChild child = bestChild;
+    	for (int ply = 1; child.state.isMovePending(); ply++)
+    	{
+    		// A line cut short by a transposition table hit goes on with the table's move, or else the first action
+    		int move = GameState.NO_MOVE;
+    		if (ply < principalVariation.length)
+    		{
+    			move = principalVariation[ply];
+    		}
+    		else if (transpositionTable.probe(child.state.getHashKey() ^ (child.state.isFootmenToMove() ? 0 : MINIMIZER_TO_MOVE_KEY), ttEntry))
+    		{
+    			move = ttEntry.move;
+    		}
+    		
+    		GameStateChild next = findChild(child.state, move);
+    		child = next != null ? next : child.state.getChildIterator().next();
+    	}
+    	return new GameStateChild(child.action, child.state.withUtility(bestChild.state.getUtility()));
+    }
+    
+    /**
+     * Search the root to the given depth.  With aspiration windows the search starts with a narrow
+     * window around the value expected at this depth.  The archers move on every other ply, so the
+     * values of odd and even depths drift apart and the expected value is the one found two plys
+     * shallower this turn, or for the first two depths the one found at the same depth last turn.
+     * A narrow window cuts off more, but if the value falls outside it the search only learns a bound,
+     * so it is repeated with that side of the window opened up.
+     * @param root The root of this turn's search
+     * @param depth The depth to search to
+     * @return The best child of the root with its value
+     */
+    private GameStateChild searchRoot(GameStateChild root, int depth)
+    {
+    	double expectedValue = depth > 2 ? rootValues[depth - 2] : rootValues[depth];
+    	double alpha = Double.NEGATIVE_INFINITY;
+    	double beta = Double.POSITIVE_INFINITY;
+    	if (aspirationWidth > 0 && !Double.isNaN(expectedValue) && !Double.isInfinite(expectedValue))
+    	{
+    		alpha = expectedValue - aspirationWidth;
+    		beta = expectedValue + aspirationWidth;
+    	}
+    	
+    	while (true)
+    	{
+    		GameStateChild result = alphaBetaSearch(root, depth, alpha, beta, true);
+    		double value = result.state.getUtility();
+    		if (searchAborted)
+    		{
+    			return result;
+    		}
+    		
+    		if (value <= alpha && alpha != Double.NEGATIVE_INFINITY)
+    		{
+    			alpha = Double.NEGATIVE_INFINITY;	// Failed low
+    		}
+    		else if (value >= beta && beta != Double.POSITIVE_INFINITY)
+    		{
+    			beta = Double.POSITIVE_INFINITY;	// Failed high
+    		}
+    		else
+    		{
+    			rootValues[depth] = value;
+    			return result;
+    		}
+    		statistics.countAspirationResearch();
+    	}
+    }
+    
+    /**
+     * Start every helper searcher on its own copy of the root state.
+     * @param rootState The state at the root of this turn's search
+     * @return The running helper tasks
+     */
+    private List<ForkJoinTask<?>> startHelpers(GameState rootState)
+    {
+    	List<ForkJoinTask<?>> helperTasks = new ArrayList<ForkJoinTask<?>>(helpers.length);
+    	if (helperPool == null && helpers.length > 0)
+    	{
+    		helperPool = new ForkJoinPool(helpers.length);
+    	}
+    	
+    	for (final MinimaxAlphaBeta helper : helpers)
+    	{
+    		// Game states are modified in place while their children are generated, so every thread needs its own root
+    		final GameState helperRoot = rootState.withUtility(rootState.getUtility());
+    		helper.stopRequested = false;
+    		helper.deadline = deadline;
+    		
+    		helperTasks.add(helperPool.submit(new Runnable()
+    		{
+    			@Override
+    			public void run()
+    			{
+    				helper.runHelperSearch(helperRoot);
+    			}
+    		}));
+    	}
+    	return helperTasks;
+    }
+    
+    /**
+     * Tell every helper to stop and wait for them to unwind.
+     * @param helperTasks The tasks returned by startHelpers()
+     */
+    private void stopHelpers(List<ForkJoinTask<?>> helperTasks)
+    {
+    	for (MinimaxAlphaBeta helper : helpers)
+    	{
+    		helper.stopRequested = true;
+    	}
+    	for (ForkJoinTask<?> helperTask : helperTasks)
+    	{
+    		helperTask.join();
+    	}
+    }
+    
+    /**
+     * The iterative deepening loop of a helper thread.  The results are not used directly, only through
+     * the entries they leave in the shared transposition table.
+     * @param rootState This helper's copy of the root state
+     */
+    private void runHelperSearch(GameState rootState)
+    {
+    	GameStateChild root = new GameStateChild(null, rootState);
+    	statistics.startTurn();
+    	rootBestMove = GameState.NO_MOVE;
+    	clearKillerMoves();
+    	ageHistoryScores();
+    	
+    	for (int depth = 1 + helperDepthOffset; depth <= numPlys && !stopRequested; depth++)
+    	{
+    		searchAborted = false;
+    		alphaBetaSearch(root, depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+    	}
+    }
+    
+    /**
+     * @return The counters of this searcher's last turn
+     */
+    public SearchStatistics getStatistics()
+    {
+    	return statistics;
+    }
+    
+    /**
+     * Check the clock every few nodes and flag the search as aborted once the turn's budget is spent.
+     * @return True if the current iteration must be abandoned
+     */
+    private boolean isOutOfTime()
+    {
+    	long nodes = statistics.countNode();
+    	if (!searchAborted && (nodes & (CLOCK_CHECK_INTERVAL - 1)) == 0 && (stopRequested || System.nanoTime() > deadline))
+    	{
+    		searchAborted = true;
+    	}
+    	return searchAborted;
+    }
 
+    /**
+     * Stop the helper threads at the end of the episode.  They are only waiting for work between turns,
+     * and the next turn starts new ones if the agent plays another episode.
+     */
     @Override
-    public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {}
+    public void terminalStep(State.StateView newstate, History.HistoryView statehistory)
+    {
+    	if (helperPool != null)
+    	{
+    		helperPool.shutdownNow();
+    		helperPool = null;
+    	}
+    }
 
     @Override
     public void savePlayerData(OutputStream os) {}
@@ -67,52 +602,194 @@ public class MinimaxAlphaBeta extends Agent
      * Try to keep the logic in this function as abstract as possible (i.e. move as much SEPIA specific
      * code into other functions and methods)
      *
+     * The recursion itself is done by search(), which only passes values up the tree.  The best move
+     * of every node is recorded in a triangular principal variation table on the way back up, and the
+     * best child of this node is the first move of its line.
+     *
      * @param node The action and state to search from
      * @param depth The remaining number of plys under this node
      * @param alpha The current best value for the maximizing node from this node to the root
      * @param beta The current best value for the minimizing node from this node to the root
-     * @return The best child of this node with updated values
+     * @return The best child of this node with updated values, or the node itself if it has no children
      */
     public GameStateChild alphaBetaSearch(GameStateChild node, int depth, double alpha, double beta, boolean isMaximizer)
     {
-    	System.out.println("\n==> Starting Alpha-Beta...");
-    	System.out.println("Current Depth: " + depth);
-		System.out.println("Alpha: " + alpha);
-		System.out.println("Beta: " + beta);
-		System.out.println(node.state.getFootmanCoordinates());
-		
-    	List<GameStateChild> children = orderChildrenWithHeuristics(node.state.getChildren());    
+    	// In factored mode every unit's action is a ply of its own
+    	int maxPly = factoredMoves ? depth * UNITS_PER_MOVE : depth;
+    	if (principalVariationMoves.length <= maxPly)
+    	{
+    		principalVariationMoves = new int[maxPly + 1][maxPly + 1];
+    		principalVariationLengths = new int[maxPly + 1];
+    	}
     	
-    	// We are at a terminal node
+    	rootBestChild = null;
+    	followingExpectedLine = true;
+    	double value = search(node.state, depth, alpha, beta, isMaximizer, 0);
+    	
+    	GameStateChild bestChild = rootBestChild != null ? rootBestChild : node;
+    	return new GameStateChild(bestChild.action, bestChild.state.withUtility(value));
+    }
+    
+    /**
+     * Alpha-beta search below the root.  Values are passed back up the tree rather than the states
+     * they were found at, so a transposition table hit or a leaf costs no allocation.
+     * @param state The state to search from
+     * @param depth The remaining number of plys under this state
+     * @param alpha The current best value for the maximizing node from this node to the root
+     * @param beta The current best value for the minimizing node from this node to the root
+     * @param isMaximizer True if the footmen move in this state
+     * @param ply The distance of this state from the root
+     * @return The value of the state, or a bound on it if it falls outside the window
+     */
+    private double search(GameState state, int depth, double alpha, double beta, boolean isMaximizer, int ply)
+    {
+    	// Unwind as fast as possible once the time is up, the caller throws this iteration away
+    	if (isOutOfTime())
+    	{
+    		return 0;
+    	}
+    	boolean isRoot = ply == 0;
+    	principalVariationLengths[ply] = 0;
+    	
+    	// Every trace message is built inside a check so a disabled trace costs nothing
+    	if (traceEnabled)
+    	{
+	    	trace("\n==> Starting Alpha-Beta...");
+	    	trace("Current Depth: " + depth);
+			trace("Alpha: " + alpha);
+			trace("Beta: " + beta);
+			trace(state.getFootmanCoordinates());
+    	}
+		
+		// Look the state up in the transposition table.  The root is never cut off this way since
+		// middleStep() needs the actions of one of its children.
+		long hashKey = state.getHashKey() ^ (isMaximizer ? 0 : MINIMIZER_TO_MOVE_KEY);
+		int hashMove = GameState.NO_MOVE;
+		
+		if (transpositionTable.probe(hashKey, ttEntry))
+		{
+			hashMove = ttEntry.move;
+			statistics.countTranspositionHit();
+			
+			if (!isRoot && ttEntry.depth >= depth)
+			{
+				if (ttEntry.bound == TranspositionTable.EXACT
+						|| (ttEntry.bound == TranspositionTable.LOWER_BOUND && ttEntry.value >= beta)
+						|| (ttEntry.bound == TranspositionTable.UPPER_BOUND && ttEntry.value <= alpha))
+				{
+					if (traceEnabled)
+					{
+						trace("Transposition table hit: " + state.getFootmanCoordinates());
+					}
+					return ttEntry.value;
+				}
+			}
+		}
+		
+    	// We are at a terminal node.  Leaves only look further at attacks.
     	if (depth == 0)
     	{
-    		System.out.println("Reached depth 0: " + node.state.getFootmanCoordinates() + " is the best choice.");    		
-    		return node; // return best state
+    		if (traceEnabled)
+    		{
+    			trace("Reached depth 0: " + state.getFootmanCoordinates() + " is the best choice.");
+    		}
+    		return quiescence(state, alpha, beta, isMaximizer, quiescencePlys);
+    	}
+    	
+    	// On the expected line its next move goes first.  At the root the best move of an aspiration
+    	// search that failed is a better guess, since it was searched to the same depth.
+    	boolean onExpectedLine = followingExpectedLine;
+    	int expectedMove = onExpectedLine && ply < expectedLine.length ? expectedLine[ply] : GameState.NO_MOVE;
+    	if (isRoot && rootBestMove != GameState.NO_MOVE)
+    	{
+    		expectedMove = rootBestMove;
+    	}
+    	
+    	// The children of the last ply before the leaves are generated lazily in their natural order, so
+    	// a cutoff stops their generation.  Everywhere else the expected, hash and killer moves are built
+    	// on their own first, and the whole list is only built when none of them cuts off.  It is then
+    	// picked from best score first, so a cutoff also saves ordering the rest of the list.
+    	Iterator<GameStateChild> children;
+    	if (depth > 1)
+    	{
+    		children = new StagedChildren(state, isMaximizer, ply, hashMove, expectedMove);
+    	}
+    	else
+    	{
+    		children = state.getChildIterator();
     	}
     	
+    	double alphaOriginal = alpha;	// Needed to tell which kind of bound the result is
+    	double betaOriginal = beta;
+    	int bestMove = GameState.NO_MOVE;
+    	boolean hasChildren = children.hasNext();
+    	int childrenSearched = 0;
+    	double v;
+    	
     	// Evaluate maximizing states
     	if (isMaximizer)
     	{
-    		System.out.println("Maximizing node: " + node.state.getFootmanCoordinates());
+    		if (traceEnabled)
+    		{
+    			trace("Maximizing node: " + state.getFootmanCoordinates());
+    		}
 
-    		double v = Double.NEGATIVE_INFINITY;
+    		v = Double.NEGATIVE_INFINITY;
     		
-	    	for (GameStateChild child : children)
+	    	while (children.hasNext())
 	    	{
-	    		GameStateChild tempNode = alphaBetaSearch(child, depth - 1, alpha, beta, false);
-	    		double tempUtility = tempNode.state.getUtility();
-	    		v = Math.max(v, tempUtility);	    		
+	    		GameStateChild child = children.next();
+	    		childrenSearched++;
+	    		followingExpectedLine = onExpectedLine && child.state.getMove() == expectedMove;
 	    		
-		    	// Set node to child with v utility
-	    		if (v == tempUtility)
+	    		// In factored mode the next footman chooses its action within the same ply
+	    		boolean childIsMaximizer = child.state.isFootmenToMove();
+	    		int childDepth = childIsMaximizer ? depth : depth - 1;
+	    		double childValue;
+	    		if (pvsEnabled && childDepth > 0 && childrenSearched > 1)
+	    		{
+	    			// Principal variation search: the first child is expected to be the best, so the
+	    			// others are scouted with a null window that only proves whether they beat alpha,
+	    			// and are searched again with the full window if one does.  Leaves return their
+	    			// exact value whatever the window, so they are never scouted.
+	    			childValue = search(child.state, childDepth, alpha, Math.nextUp(alpha), childIsMaximizer, ply + 1);
+	    			if (!searchAborted && childValue > alpha && childValue < beta)
+	    			{
+	    				statistics.countPvsResearch();
+	    				childValue = search(child.state, childDepth, alpha, beta, childIsMaximizer, ply + 1);
+	    			}
+	    		}
+	    		else
+	    		{
+	    			childValue = search(child.state, childDepth, alpha, beta, childIsMaximizer, ply + 1);
+	    		}
+	    		if (searchAborted)
 	    		{
-	    			node = tempNode;
+	    			return 0;
+	    		}
+	    		
+		    	// Only a strict improvement counts, since a child that was cut off only returns a bound
+	    		// that can tie with v.
+	    		if (childValue > v || bestMove == GameState.NO_MOVE)
+	    		{
+	    			v = childValue;
+	    			bestMove = child.state.getMove();
+	    			updatePrincipalVariation(ply, bestMove);
+	    			if (isRoot)
+	    			{
+	    				rootBestChild = child;
+	    			}
 	    		}
 	    		alpha = Math.max(alpha, v);
 	    		
 	    		if (beta <= alpha)
 	    		{
-	    			System.out.println("Beta cutoff: " + child.state.getFootmanCoordinates());        			
+	    			if (traceEnabled)
+	    			{
+	    				trace("Beta cutoff: " + child.state.getFootmanCoordinates());
+	    			}
+	    			statistics.countCutoff(ply);
+	    			recordCutoff(child.state.getMove(), true, ply, depth);
         			break;	// Beta cutoff
 	    		}
 	    	}	    
@@ -121,36 +798,292 @@ public class MinimaxAlphaBeta extends Agent
 	    // Evaluate minimizing states
 	    else
 	    {
-	    	System.out.println("Minimizing node: " + node.state.getFootmanCoordinates() + ".");
+	    	if (traceEnabled)
+	    	{
+	    		trace("Minimizing node: " + state.getFootmanCoordinates() + ".");
+	    	}
 	    	
-	    	double v = Double.POSITIVE_INFINITY;
+	    	v = Double.POSITIVE_INFINITY;
 	    			
-	    	for (GameStateChild child : children)
+	    	while (children.hasNext())
 	    	{	
-	    		GameStateChild tempNode = alphaBetaSearch(child, depth - 1, alpha, beta, true);
-	    		double tempUtility = tempNode.state.getUtility();	    		
-	    		v = Math.min(v, tempUtility);	    			    			    	
+	    		GameStateChild child = children.next();
+	    		childrenSearched++;
+	    		followingExpectedLine = onExpectedLine && child.state.getMove() == expectedMove;
 	    		
-		    	// Set node to child with v utility
-	    		if (v == tempUtility)
+	    		// Again the next archer may still be choosing within the same ply
+	    		boolean childIsMaximizer = child.state.isFootmenToMove();
+	    		int childDepth = childIsMaximizer ? depth - 1 : depth;
+	    		double childValue;
+	    		if (pvsEnabled && childDepth > 0 && childrenSearched > 1)
+	    		{
+	    			// The null window of a minimizing node sits just below beta
+	    			childValue = search(child.state, childDepth, Math.nextAfter(beta, Double.NEGATIVE_INFINITY), beta, childIsMaximizer, ply + 1);
+	    			if (!searchAborted && childValue < beta && childValue > alpha)
+	    			{
+	    				statistics.countPvsResearch();
+	    				childValue = search(child.state, childDepth, alpha, beta, childIsMaximizer, ply + 1);
+	    			}
+	    		}
+	    		else
+	    		{
+	    			childValue = search(child.state, childDepth, alpha, beta, childIsMaximizer, ply + 1);
+	    		}
+	    		if (searchAborted)
+	    		{
+	    			return 0;
+	    		}
+	    		
+		    	// Again only a strict improvement counts
+	    		if (childValue < v || bestMove == GameState.NO_MOVE)
 	    		{	    			
-	    			node = tempNode;
+	    			v = childValue;
+	    			bestMove = child.state.getMove();
+	    			updatePrincipalVariation(ply, bestMove);
+	    			if (isRoot)
+	    			{
+	    				rootBestChild = child;
+	    			}
 	    		}
 	    		beta = Math.min(beta, v);
 	    		
 	    		if (beta <= alpha)
 	    		{
-	    			System.out.println("Alpha cutoff at " + child.state.getFootmanCoordinates());
+	    			if (traceEnabled)
+	    			{
+	    				trace("Alpha cutoff at " + child.state.getFootmanCoordinates());
+	    			}
+	    			statistics.countCutoff(ply);
+	    			recordCutoff(child.state.getMove(), false, ply, depth);
 	    			break;	// Alpha cutoff
 	    		}
 	    	}
 	    } 
-    	System.out.println(node.state.getFootmanCoordinates() + " is the best choice.");    	
-    	System.out.println("Final Alpha: " + alpha);
-		System.out.println("Final Beta: " + beta);
-        return node;
+    	
+    	// Remember the result.  A value outside the original window is only a bound on the true value.
+    	// A state without children is terminal and is its own evaluation.
+    	if (hasChildren)
+    	{
+    		statistics.countExpansion(childrenSearched);
+    		int bound = TranspositionTable.EXACT;
+    		if (v <= alphaOriginal)
+    		{
+    			bound = TranspositionTable.UPPER_BOUND;
+    		}
+    		else if (v >= betaOriginal)
+    		{
+    			bound = TranspositionTable.LOWER_BOUND;
+    		}
+    		transpositionTable.store(hashKey, v, depth, bound, bestMove);
+    	}
+    	else
+    	{
+    		statistics.countEvaluation();
+    		v = state.getUtility();
+    	}
+    	if (isRoot)
+    	{
+    		rootBestMove = bestMove;
+    	}
+    	
+    	if (traceEnabled)
+    	{
+	    	trace("Value " + v + " with the best move " + bestMove + ".");
+	    	trace("Final Alpha: " + alpha);
+			trace("Final Beta: " + beta);
+    	}
+        return v;
     }
-
+    
+    /**
+     * Quiescence search.  A leaf in the middle of a fight is misjudged by the static utility, since
+     * the next attack changes it a lot, so from the leaves only attacks are searched until neither
+     * side wants to attack.  The side to move can always stand pat on the utility of the state instead
+     * of attacking, which bounds the value from one side and lets the quiet leaves return at once.
+     * Positions do not change, so this is far cheaper than another full ply.
+     * @param state The state to search from
+     * @param alpha The current best value for the maximizing node from this node to the root
+     * @param beta The current best value for the minimizing node from this node to the root
+     * @param isMaximizer True if the footmen move in this state
+     * @param plysLeft How many more plys of attacks may be searched
+     * @return The value of the state, or a bound on it if it falls outside the window
+     */
+    private double quiescence(GameState state, double alpha, double beta, boolean isMaximizer, int plysLeft)
+    {
+    	double standPat = state.getUtility();
+    	statistics.countEvaluation();
+    	if (plysLeft == 0 || Double.isInfinite(standPat))
+    	{
+    		return standPat;
+    	}
+    	
+    	if (isMaximizer)
+    	{
+    		if (standPat >= beta)
+    		{
+    			return standPat;
+    		}
+    		alpha = Math.max(alpha, standPat);
+    	}
+    	else
+    	{
+    		if (standPat <= alpha)
+    		{
+    			return standPat;
+    		}
+    		beta = Math.min(beta, standPat);
+    	}
+    	
+    	double v = standPat;
+    	Iterator<GameStateChild> attacks = state.getAttackIterator();
+    	while (attacks.hasNext())
+    	{
+    		GameStateChild child = attacks.next();
+    		if (isOutOfTime())
+    		{
+    			return 0;
+    		}
+    		statistics.countQuiescenceNode();
+    		
+    		double childValue = quiescence(child.state, alpha, beta, !isMaximizer, plysLeft - 1);
+    		if (searchAborted)
+    		{
+    			return 0;
+    		}
+    		
+    		if (isMaximizer)
+    		{
+    			v = Math.max(v, childValue);
+    			alpha = Math.max(alpha, v);
+    		}
+    		else
+    		{
+    			v = Math.min(v, childValue);
+    			beta = Math.min(beta, v);
+    		}
+    		if (beta <= alpha)
+    		{
+    			break;
+    		}
+    	}
+    	return v;
+    }
+    
+    /**
+     * Make a move followed by the principal variation of the child it leads to the principal
+     * variation of the node at the given ply.  The child's line is still in the row below, since
+     * search() has just returned from it.
+     * @param ply The distance of the node from the root
+     * @param move The new best move of the node
+     */
+    private void updatePrincipalVariation(int ply, int move)
+    {
+    	int childLength = principalVariationLengths[ply + 1];
+    	principalVariationMoves[ply][0] = move;
+    	System.arraycopy(principalVariationMoves[ply + 1], 0, principalVariationMoves[ply], 1, childLength);
+    	principalVariationLengths[ply] = childLength + 1;
+    }
+    
+    /**
+     * @return The joint moves of the principal variation of the last completed iteration, starting at the root
+     */
+    public int[] getPrincipalVariation()
+    {
+    	return principalVariation.clone();
+    }
+    
+    /**
+     * Describe the principal variation move by move by playing it out from the root.
+     * @param root The state at the root of the search
+     * @return A readable line of the principal variation
+     */
+    private String describePrincipalVariation(GameState root)
+    {
+    	StringBuilder description = new StringBuilder("Principal variation:");
+    	GameState state = root.withMoveGeneration(factoredMoves, pruneDominatedMoves);	// The line was found with these moves
+    	
+    	for (int move : principalVariation)
+    	{
+    		description.append(" [").append(state.describeMove(move)).append(']');
+    		state = playMove(state, move);
+    		if (state == null)
+    		{
+    			break;
+    		}
+    	}
+    	return description.toString();
+    }
+    
+    /**
+     * Work out where the next turn starts if the footmen play the principal variation's first move and
+     * the archers reply as it expects, so the next turn can tell whether the rest of the line still holds.
+     * @param root The state at the root of this turn's search
+     */
+    private void predictNextRoot(GameState root)
+    {
+    	predictedLine = new int[0];
+    	predictedRoot = null;
+    	
+    	// Play the line until the footmen are to move again.  That is two plys, or in factored mode one
+    	// ply per unit of either side.
+    	GameState state = root;
+    	int plys = 0;
+    	for (int turn = 0; turn < 2; turn++)
+    	{
+    		boolean footmenToMove = state.isFootmenToMove();
+    		while (state.isFootmenToMove() == footmenToMove)
+    		{
+    			if (plys == principalVariation.length)
+    			{
+    				return;
+    			}
+    			state = playMove(state, principalVariation[plys++]);
+    			if (state == null)
+    			{
+    				return;
+    			}
+    		}
+    	}
+    	predictedRoot = state;
+    	predictedPlys = plys;
+    	predictedLine = Arrays.copyOfRange(principalVariation, plys, principalVariation.length);
+    }
+    
+    /**
+     * @return The child of the state that the joint move leads to, or null if it is not a legal move
+     */
+    private static GameState playMove(GameState state, int move)
+    {
+    	GameStateChild child = findChild(state, move);
+    	return child == null ? null : child.state;
+    }
+    
+    /**
+     * @return The child of the state that the joint move leads to with its actions, or null if it is not a legal move
+     */
+    private static GameStateChild findChild(GameState state, int move)
+    {
+    	Iterator<GameStateChild> children = state.getChildIterator();
+    	while (children.hasNext())
+    	{
+    		GameStateChild child = children.next();
+    		if (child.state.getMove() == move)
+    		{
+    			return child;
+    		}
+    	}
+    	return null;
+    }
+    
+    /**
+     * Print a line of the search trace.  Callers check traceEnabled first, so the message is only
+     * built when it will be printed.
+     */
+    private void trace(String message)
+    {
+    	System.out.println(message);
+    }
+    
     /**
      * You will implement this.
      *
@@ -161,40 +1094,337 @@ public class MinimaxAlphaBeta extends Agent
      *
      * Include a good comment about what your heuristics are and why you chose them.
      *
+     * The search itself picks children through scoreChildren() and OrderedChildren, which also know the
+     * transposition table move and the killer moves of the node's ply.  Out of the search there is only
+     * the history heuristic: every time a unit's action caused a cutoff, that (unit, action) pair was
+     * credited with depth squared, so actions that refuted whole subtrees come first.  None of this needs
+     * the children to be evaluated, which sorting them by utility did.  Ties keep the generation order,
+     * which puts attacks first.
+     *
      * @param children
      * @return The list of children sorted by your heuristic.
      */
     public List<GameStateChild> orderChildrenWithHeuristics(List<GameStateChild> children)
     {
-    	List<GameStateChild> returnList = new ArrayList<GameStateChild>();
+    	List<GameStateChild> returnList = new ArrayList<GameStateChild>(children.size());
+    	boolean footmenMoved = !children.isEmpty() && !children.get(0).state.isFootmenToMove();
+    	Iterator<GameStateChild> orderedChildren = new OrderedChildren(children, scoreChildren(children, footmenMoved, -1, GameState.NO_MOVE, GameState.NO_MOVE));
     	
-    	// Sort the children by their utility.  We want to examine children with high utility first.
-    	// This was our first choice of heuristic and it never really matured beyond this...
-    	for (GameStateChild considerChild : children)
-    	{	
-    		if (returnList.size() == 0)
+    	// Picking every child in turn gives them in sorted order
+    	while (orderedChildren.hasNext())
+    	{
+    		returnList.add(orderedChildren.next());
+    	}
+        return returnList;
+    }
+    
+    /**
+     * Give every child an ordering score.  The expected move comes first, then the transposition table move, then the killer moves of this ply, and the rest by the
+     * history scores of the unit actions that make up their joint move.
+     * @param children The children of one node, all made by the same side
+     * @param isMaximizer True if the footmen made the children's moves
+     * @param ply The distance of the node from the root, or -1 to ignore the killer moves
+     * @param hashMove The move stored in the transposition table for the node
+     * @param expectedMove The move of the expected line at the node, if the node is on it
+     * @return The score of each child, in the order of the list
+     */
+    private int[] scoreChildren(List<GameStateChild> children, boolean isMaximizer, int ply, int hashMove, int expectedMove)
+    {
+    	int[] scores = new int[children.size()];
+    	if (children.isEmpty())
+    	{
+    		return scores;
+    	}
+    	
+    	int side = isMaximizer ? 0 : 1;
+    	int[] killers = ply >= 0 && ply < MAX_PLY ? killerMoves[ply] : null;
+    	
+    	for (int i = 0; i < scores.length; i++)
+    	{
+    		int move = children.get(i).state.getMove();
+    		if (move == expectedMove)
     		{
-    			returnList.add(considerChild);
+    			scores[i] = EXPECTED_MOVE_SCORE;
+    		}
+    		else if (move == hashMove)
+    		{
+    			scores[i] = HASH_MOVE_SCORE;
+    		}
+    		else if (killers != null && move == killers[0])
+    		{
+    			scores[i] = KILLER_SCORE + 1;
+    		}
+    		else if (killers != null && move == killers[1])
+    		{
+    			scores[i] = KILLER_SCORE;
     		}
     		else
     		{
-    			boolean placed = false;
-    			int index = 0;
-    			while (!placed && index < returnList.size())
+    			scores[i] = getHistoryScore(move, side);
+    		}
+    	}
+    	return scores;
+    }
+    
+    /**
+     * Sum the history scores of the unit actions in a joint move.  Idle units are not counted.
+     */
+    private int getHistoryScore(int move, int side)
+    {
+    	int score = 0;
+    	for (int slot = 0, remaining = move; remaining != 0; slot++, remaining >>>= GameState.MOVE_BITS)
+    	{
+    		score += historyScores[getHistoryIndex(side, slot, remaining & (ACTION_CODES - 1))];
+    	}
+    	return score;
+    }
+    
+    /**
+     * Remember a move that caused a cutoff, as a killer move of its ply and in the history scores.
+     * @param move The joint move that caused the cutoff
+     * @param isMaximizer True if the footmen made the move
+     * @param ply The distance from the root of the node the cutoff happened at
+     * @param depth The remaining depth of that node, deeper cutoffs count for more
+     */
+    private void recordCutoff(int move, boolean isMaximizer, int ply, int depth)
+    {
+    	if (ply < MAX_PLY && killerMoves[ply][0] != move)
+    	{
+    		killerMoves[ply][1] = killerMoves[ply][0];
+    		killerMoves[ply][0] = move;
+    	}
+    	
+    	int side = isMaximizer ? 0 : 1;
+    	for (int slot = 0, remaining = move; remaining != 0; slot++, remaining >>>= GameState.MOVE_BITS)
+    	{
+    		int index = getHistoryIndex(side, slot, remaining & (ACTION_CODES - 1));
+    		historyScores[index] = Math.min(historyScores[index] + depth * depth, KILLER_SCORE / UNITS_PER_MOVE - 1);
+    	}
+    }
+    
+    private static int getHistoryIndex(int side, int slot, int actionCode)
+    {
+    	return (side * UNITS_PER_MOVE + slot) * ACTION_CODES + actionCode;
+    }
+    
+    /**
+     * Move the killer moves closer to the root, when this turn's root is a node of the last turn's tree.
+     * @param plys How far below the last turn's root this turn's root is
+     */
+    private void shiftKillerMoves(int plys)
+    {
+    	for (int ply = 0; ply < MAX_PLY; ply++)
+    	{
+    		killerMoves[ply][0] = ply + plys < MAX_PLY ? killerMoves[ply + plys][0] : GameState.NO_MOVE;
+    		killerMoves[ply][1] = ply + plys < MAX_PLY ? killerMoves[ply + plys][1] : GameState.NO_MOVE;
+    	}
+    }
+    
+    /**
+     * Forget everything earlier searches learned: the transposition table, the killer moves, the
+     * history scores and the best root move and line.  Lets a benchmark repeat a search on one agent
+     * without allocating a new one.
+     */
+    void clearSearchTables()
+    {
+    	transpositionTable.clear();
+    	rootBestMove = GameState.NO_MOVE;
+    	expectedLine = new int[0];
+    	clearKillerMoves();
+    	Arrays.fill(historyScores, 0);
+    }
+    
+    /**
+     * Forget the killer moves of the last turn, the plys no longer line up with this turn's tree.
+     */
+    private void clearKillerMoves()
+    {
+    	for (int[] killers : killerMoves)
+    	{
+    		killers[0] = GameState.NO_MOVE;
+    		killers[1] = GameState.NO_MOVE;
+    	}
+    }
+    
+    /**
+     * Halve the history scores at the start of every turn so the recent cutoffs count the most.
+     */
+    private void ageHistoryScores()
+    {
+    	for (int i = 0; i < historyScores.length; i++)
+    	{
+    		historyScores[i] >>= 1;
+    	}
+    }
+    
+    /**
+     * Hands out the children of a node best score first.  Each call to next() only looks for the best
+     * of the children that are left, so a cutoff saves ordering the rest.  Nothing is moved: a child
+     * that has been handed out has its score replaced by PICKED, and the scan takes the lowest index
+     * of the best score, so ties keep their generation order.
+     */
+    private static class OrderedChildren implements Iterator<GameStateChild>
+    {
+    	private static final int PICKED = Integer.MIN_VALUE;	// Below every ordering score, which are never negative
+    	
+    	private final List<GameStateChild> children;
+    	private final int[] scores;	// The score of each child, in the order of the list
+    	private int remaining;	// The number of children not handed out yet
+    	
+    	/**
+    	 * @param children The children to hand out
+    	 * @param scores The score of each child, or PICKED to leave it out
+    	 */
+    	public OrderedChildren(List<GameStateChild> children, int[] scores)
+    	{
+    		this.children = children;
+    		this.scores = scores;
+    		for (int score : scores)
+    		{
+    			this.remaining += score == PICKED ? 0 : 1;
+    		}
+    	}
+    	
+    	@Override
+    	public boolean hasNext()
+    	{
+    		return remaining > 0;
+    	}
+    	
+    	@Override
+    	public GameStateChild next()
+    	{
+    		int best = -1;
+    		for (int i = 0; i < scores.length; i++)
+    		{
+    			if (scores[i] != PICKED && (best < 0 || scores[i] > scores[best]))
     			{
-    				if (considerChild.state.getUtility() > returnList.get(index).state.getUtility())
-        			{
-        				returnList.add(index, considerChild);
-        				placed = true;
-        			}
-    				index++;
+    				best = i;
     			}
-    			if (!placed)
+    		}
+    		
+    		scores[best] = PICKED;
+    		remaining--;
+    		return children.get(best);
+    	}
+    	
+    	@Override
+    	public void remove()
+    	{
+    		throw new UnsupportedOperationException();
+    	}
+    }
+    
+    /**
+     * Hands out the children of a node in the order of OrderedChildren, but builds the ones that
+     * scoreChildren() puts above every history score on their own first: the expected move, the
+     * transposition table move and the killer moves.  The node's other children are only generated
+     * once those have been searched, so a cutoff by one of them saves generating the rest.
+     */
+    private class StagedChildren implements Iterator<GameStateChild>
+    {
+    	private final GameState state;
+    	private final boolean isMaximizer;
+    	private final int ply;
+    	private final int hashMove;
+    	private final int expectedMove;
+    	private final int[] firstMoves = new int[2 + KILLERS_PER_PLY];	// The moves built on their own, best first
+    	private int numFirstMoves;
+    	private int nextFirstMove;	// The index in firstMoves of the next move to build
+    	private GameStateChild nextChild;	// A child built on its own that has not been handed out yet
+    	private OrderedChildren rest;	// The other children, once they have been generated
+    	
+    	public StagedChildren(GameState state, boolean isMaximizer, int ply, int hashMove, int expectedMove)
+    	{
+    		this.state = state;
+    		this.isMaximizer = isMaximizer;
+    		this.ply = ply;
+    		this.hashMove = hashMove;
+    		this.expectedMove = expectedMove;
+    		
+    		addFirstMove(expectedMove);
+    		addFirstMove(hashMove);
+    		if (ply < MAX_PLY)
+    		{
+    			for (int killer : killerMoves[ply])
     			{
-    				returnList.add(returnList.size(), considerChild);
+    				addFirstMove(killer);
     			}
     		}
     	}
-        return returnList;
+    	
+    	private void addFirstMove(int move)
+    	{
+    		for (int i = 0; i < this.numFirstMoves; i++)
+    		{
+    			if (this.firstMoves[i] == move)
+    			{
+    				return;
+    			}
+    		}
+    		if (move != GameState.NO_MOVE)
+    		{
+    			this.firstMoves[this.numFirstMoves++] = move;
+    		}
+    	}
+    	
+    	@Override
+    	public boolean hasNext()
+    	{
+    		if (this.nextChild != null)
+    		{
+    			return true;
+    		}
+    		if (this.rest == null)
+    		{
+    			// Killer moves come from other nodes of the ply, so they are not always legal here
+    			while (this.nextFirstMove < this.numFirstMoves)
+    			{
+    				this.nextChild = this.state.getChild(this.firstMoves[this.nextFirstMove++]);
+    				if (this.nextChild != null)
+    				{
+    					return true;
+    				}
+    			}
+    			
+    			List<GameStateChild> childList = this.state.getChildren();
+    			int[] scores = scoreChildren(childList, this.isMaximizer, this.ply, this.hashMove, this.expectedMove);
+    			for (int i = 0; i < scores.length; i++)
+    			{
+    				int move = childList.get(i).state.getMove();
+    				for (int first = 0; first < this.numFirstMoves; first++)
+    				{
+    					if (this.firstMoves[first] == move)
+    					{
+    						scores[i] = OrderedChildren.PICKED;	// Already handed out
+    					}
+    				}
+    			}
+    			this.rest = new OrderedChildren(childList, scores);
+    		}
+    		return this.rest.hasNext();
+    	}
+    	
+    	@Override
+    	public GameStateChild next()
+    	{
+    		if (!hasNext())
+    		{
+    			throw new NoSuchElementException();
+    		}
+    		if (this.nextChild != null)
+    		{
+    			GameStateChild child = this.nextChild;
+    			this.nextChild = null;
+    			return child;
+    		}
+    		return this.rest.next();
+    	}
+    	
+    	@Override
+    	public void remove()
+    	{
+    		throw new UnsupportedOperationException();
+    	}
     }
 }
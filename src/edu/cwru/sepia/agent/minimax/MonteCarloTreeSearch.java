@@ -0,0 +1,363 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The footman agent as a UCT Monte Carlo tree search, an alternative to MinimaxAlphaBeta for when the
+ * joint moves of several footmen branch too widely for a full width search.  It uses the same GameState
+ * forward model and evaluator, and the same per-turn time budget, so the two can be compared in
+ * BatchRunner with agent=MonteCarloTreeSearch.
+ *
+ * Every iteration walks down the tree picking children by UCT, plays a random playout from the node it
+ * reaches and backs the result up the path.  Playouts run on a scratch state with
+ * GameState.playRandomMove(), so they allocate nothing, and stop after a fixed number of plys, where
+ * the evaluator's utility relative to the root's is squashed into a reward between 0 and 1.  A node only
+ * gets children once it has been visited a few times, which keeps the tree small.
+ *
+ * With more than one thread, every thread grows the same tree.  Each node's lock guards its children and
+ * their counts, and a thread walking through a child adds a virtual loss to it until its playout is
+ * backed up, so the other threads spread out over the tree instead of all following the same path.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class MonteCarloTreeSearch extends Agent
+{
+	private final int playoutPlys;	// The plys a playout runs before it is scored
+	private final long timeBudgetMillis;	// The wall-clock budget of each turn
+	private final long maxIterations;	// Stop a turn after this many iterations, or 0 for no limit
+	private final double exploration;	// The UCT exploration constant
+	private final double valueScale;	// The utility difference that moves a reward from 0.5 to about 0.73
+	private final int expandVisits;	// A node gets its children once it has been visited this often
+	private final boolean statisticsEnabled;	// Print a line about the search once per turn
+	private final Evaluator evaluator;
+	private ForkJoinPool helperPool;	// Runs the helper threads, started by the first turn and shut down at the end of the episode
+	private final int helperThreads;
+
+	// Search state for the current turn, shared by every thread
+	private volatile long deadline;	// System.nanoTime() after which no new iteration starts
+	private final AtomicLong iterations = new AtomicLong();
+	private double rootUtility;	// The utility of the root, the center of the rewards
+
+	/**
+	 * The first argument is the number of plys every playout runs before it is scored.  Any further
+	 * arguments are optional name=value settings:
+	 *
+	 * timeMs: the wall-clock budget of each turn in milliseconds (default 100)
+	 * iterations: the most iterations of each turn, 0 for no limit (default 0)
+	 * threads: the number of threads growing the tree (default 1)
+	 * exploration: the UCT exploration constant (default 0.7)
+	 * valueScale: how much utility separates a reward of 0.5 from about 0.73 (default 100)
+	 * expandVisits: the visits a node needs before it gets children (default 4)
+	 * stats: print a line about the search once per turn (default true)
+	 * weights and <key>Weight: the evaluation weights, the same as MinimaxAlphaBeta's
+	 */
+	public MonteCarloTreeSearch(int playernum, String[] args)
+	{
+		super(playernum);
+
+		if (args.length < 1)
+		{
+			System.err.println("You must specify the number of plys of a playout.");
+			System.exit(1);
+		}
+
+		this.playoutPlys = Integer.parseInt(args[0]);
+		this.timeBudgetMillis = Long.parseLong(MinimaxAlphaBeta.getOption(args, "timeMs", "100"));
+		this.maxIterations = Long.parseLong(MinimaxAlphaBeta.getOption(args, "iterations", "0"));
+		this.exploration = Double.parseDouble(MinimaxAlphaBeta.getOption(args, "exploration", "0.7"));
+		this.valueScale = Double.parseDouble(MinimaxAlphaBeta.getOption(args, "valueScale", "100"));
+		this.expandVisits = Math.max(1, Integer.parseInt(MinimaxAlphaBeta.getOption(args, "expandVisits", "4")));
+		this.statisticsEnabled = Boolean.parseBoolean(MinimaxAlphaBeta.getOption(args, "stats", "true"));
+		this.evaluator = MinimaxAlphaBeta.createEvaluator(args);
+
+		int threads = Math.max(1, Integer.parseInt(MinimaxAlphaBeta.getOption(args, "threads", "1")));
+		this.helperThreads = threads - 1;
+	}
+
+	@Override
+	public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory)
+	{
+		return middleStep(newstate, statehistory);
+	}
+
+	@Override
+	public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory)
+	{
+		long startTime = System.nanoTime();
+		deadline = startTime + timeBudgetMillis * 1000000L;
+		iterations.set(0);
+
+		GameState rootState = new GameState(newstate, evaluator);
+		rootUtility = rootState.getUtility();
+
+		// Only the root's children keep their actions, the rest of the tree only needs states
+		Node root = new Node(null, rootState);
+		List<GameStateChild> rootChildren = rootState.getChildren();
+		root.children = new Node[rootChildren.size()];
+		for (int i = 0; i < root.children.length; i++)
+		{
+			root.children[i] = new Node(rootChildren.get(i).action, rootChildren.get(i).state);
+		}
+		if (root.children.length == 0)
+		{
+			return new HashMap<Integer, Action>();
+		}
+
+		List<ForkJoinTask<?>> helperTasks = new ArrayList<ForkJoinTask<?>>(helperThreads);
+		if (helperPool == null && helperThreads > 0)
+		{
+			helperPool = new ForkJoinPool(helperThreads);
+		}
+		for (int i = 0; i < helperThreads; i++)
+		{
+			final Node helperRoot = root;
+			final long seed = startTime + i + 1;
+			helperTasks.add(helperPool.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runIterations(helperRoot, new Random(seed));
+				}
+			}));
+		}
+		runIterations(root, new Random(startTime));
+		for (ForkJoinTask<?> helperTask : helperTasks)
+		{
+			helperTask.join();
+		}
+
+		// The most visited child is the one the search trusts most
+		Node best = root.children[0];
+		for (Node child : root.children)
+		{
+			if (child.visits > best.visits)
+			{
+				best = child;
+			}
+		}
+
+		if (statisticsEnabled)
+		{
+			double millis = (System.nanoTime() - startTime) / 1e6;
+			System.out.println(String.format("MCTS: %d iterations in %.1f ms (%.0f/s), best of %d moves [%s] with %d visits and reward %.3f",
+					iterations.get(), millis, iterations.get() / (millis / 1000), root.children.length,
+					rootState.describeMove(best.state.getMove()), best.visits, best.visits == 0 ? 0 : best.reward / best.visits));
+		}
+		System.out.println(best.state.getFootmanCoordinates() + " was chosen for the action.");
+		return best.action;
+	}
+
+	/**
+	 * Run iterations until the turn's budget is spent.
+	 * @param root The root of this turn's tree
+	 * @param random This thread's source of random choices
+	 */
+	private void runIterations(Node root, Random random)
+	{
+		GameState scratch = root.state.withUtility(Double.NaN);	// This thread's playout state
+		List<Node> path = new ArrayList<Node>();
+
+		// Every child of the root is tried at least once, even when building the root used up the budget
+		while (System.nanoTime() < deadline || iterations.get() < root.children.length)
+		{
+			if (iterations.incrementAndGet() > maxIterations && maxIterations > 0)
+			{
+				iterations.decrementAndGet();
+				break;
+			}
+
+			// Selection: walk down by UCT, adding a virtual loss to every node on the way
+			path.clear();
+			path.add(root);
+			Node node = root;
+			int nodeVisits = 0;	// The visits of node, the root always has children and never needs them
+			boolean isLeaf = false;
+			while (!isLeaf)
+			{
+				synchronized (node)
+				{
+					// The node's visits were read under its parent's lock when it was selected
+					if (node.children == null && nodeVisits >= expandVisits && node.terminalReward < 0)
+					{
+						node.expand();
+					}
+					if (node.children == null || node.children.length == 0)
+					{
+						// Copy the leaf under its lock, another thread may be generating its children in place
+						scratch.setTo(node.state);
+						isLeaf = true;
+					}
+					else
+					{
+						Node child = select(node);
+						child.virtualLoss++;
+						nodeVisits = child.visits;
+						node = child;
+						path.add(child);
+					}
+				}
+			}
+
+			double reward = node.terminalReward >= 0 ? node.terminalReward : playout(scratch, random);
+
+			// Backpropagation: every count is guarded by the lock of the node's parent
+			synchronized (root)
+			{
+				root.visits++;
+				root.reward += reward;
+			}
+			for (int i = path.size() - 1; i > 0; i--)
+			{
+				Node child = path.get(i);
+				synchronized (path.get(i - 1))
+				{
+					child.visits++;
+					child.reward += reward;
+					child.virtualLoss--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pick the child to walk through by UCT.  Counts are from the footmen's side, so where the archers
+	 * move a child is as good for them as it is bad for the footmen.  Virtual losses count as visits
+	 * the side to move lost.  The caller holds the node's lock.
+	 * @param node An expanded node with children
+	 * @return The child with the best upper confidence bound, or the first child nobody has tried
+	 */
+	private Node select(Node node)
+	{
+		boolean footmenChoose = node.state.isFootmenToMove();
+		int totalVisits = 0;
+		for (Node child : node.children)
+		{
+			totalVisits += child.visits + child.virtualLoss;
+		}
+		double logVisits = Math.log(Math.max(totalVisits, 1));
+		Node best = null;
+		double bestBound = Double.NEGATIVE_INFINITY;
+
+		for (Node child : node.children)
+		{
+			int visits = child.visits + child.virtualLoss;
+			if (visits == 0)
+			{
+				return child;
+			}
+			double wins = footmenChoose ? child.reward : child.visits - child.reward;
+			double bound = wins / visits + exploration * Math.sqrt(logVisits / visits);
+			if (bound > bestBound)
+			{
+				bestBound = bound;
+				best = child;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Play random turns from the scratch state until the playout is over or the game is.
+	 * @param scratch A copy of the leaf, played on in place
+	 * @param random This thread's source of random choices
+	 * @return The reward of the end of the playout for the footmen, between 0 and 1
+	 */
+	private double playout(GameState scratch, Random random)
+	{
+		for (int ply = 0; ply < playoutPlys && !scratch.isGameOver(); ply++)
+		{
+			scratch.playRandomMove(random);
+		}
+		return getReward(scratch.getUtility());
+	}
+
+	/**
+	 * Squash a utility into a reward for the footmen.  A win is 1 and a loss 0; anything else is scored
+	 * against the root's utility, so the rewards tell apart states that are all far better or all far
+	 * worse than an even position.
+	 */
+	private double getReward(double utility)
+	{
+		if (utility == Double.POSITIVE_INFINITY)
+		{
+			return 1;
+		}
+		if (utility == Double.NEGATIVE_INFINITY)
+		{
+			return 0;
+		}
+		return 1 / (1 + Math.exp(-(utility - rootUtility) / valueScale));
+	}
+
+	/**
+	 * Stop the helper threads at the end of the episode, the next turn starts new ones if there is one.
+	 */
+	@Override
+	public void terminalStep(State.StateView newstate, History.HistoryView statehistory)
+	{
+		if (helperPool != null)
+		{
+			helperPool.shutdownNow();
+			helperPool = null;
+		}
+	}
+
+	@Override
+	public void savePlayerData(OutputStream os) {}
+
+	@Override
+	public void loadPlayerData(InputStream is) {}
+
+	/**
+	 * A node of the search tree.  Its visits and rewards are guarded by its parent's lock, its children
+	 * by its own.  The root has no parent and guards its counts itself.
+	 */
+	private class Node
+	{
+		final Map<Integer, Action> action;	// The actions that lead here from the root, only kept for the root's children
+		final GameState state;
+		final double terminalReward;	// The reward of a finished game, or -1 if the game goes on
+		Node[] children;	// Null until the node is expanded
+		int visits;
+		double reward;	// The sum of the footmen's rewards of every playout through this node
+		int virtualLoss;	// Threads walking through this node whose playouts are not backed up yet
+
+		Node(Map<Integer, Action> action, GameState state)
+		{
+			this.action = action;
+			this.state = state;
+			this.terminalReward = state.isGameOver() ? getReward(state.getUtility()) : -1;
+		}
+
+		/**
+		 * Create a node for every child of the state.  The caller holds this node's lock.
+		 */
+		void expand()
+		{
+			List<Node> nodes = new ArrayList<Node>();
+			Iterator<GameStateChild> childIterator = this.state.getChildIterator();
+			while (childIterator.hasNext())
+			{
+				nodes.add(new Node(null, childIterator.next().state));
+			}
+			this.children = nodes.toArray(new Node[nodes.size()]);
+		}
+	}
+}
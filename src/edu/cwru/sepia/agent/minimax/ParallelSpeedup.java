@@ -0,0 +1,74 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+
+/**
+ * Measures how the parallel search scales.  For every scenario it times a fixed depth search from the
+ * initial position with 1 to N threads, using a fresh agent (and so an empty transposition table)
+ * each time, and prints the speedup over the single threaded search.
+ *
+ * Usage: ParallelSpeedup [plys] [maxThreads] [repetitions] [map ...]
+ * The defaults are 6 plys, one thread per core, 3 repetitions and the data/Game2fv2a*.xml maps.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class ParallelSpeedup 
+{
+	private static final String[] DEFAULT_SCENARIOS = { "data/Game2fv2a.xml", "data/Game2fv2a_Obstacles.xml" };
+	
+	public static void main(String[] args) throws Exception
+	{
+		int plys = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		String[] scenarios = DEFAULT_SCENARIOS;
+		if (args.length > 3)
+		{
+			scenarios = new String[args.length - 3];
+			System.arraycopy(args, 3, scenarios, 0, scenarios.length);
+		}
+		
+		StringBuilder report = new StringBuilder();
+		for (String scenario : scenarios)
+		{
+			State.StateView state = ScenarioLoader.loadStateView(scenario);
+			report.append(String.format("%n%s, %d plys%n%8s %12s %10s%n", scenario, plys, "threads", "ms", "speedup"));
+			
+			// Untimed, so the single threaded search is not the one that waits for the JIT
+			timeSearch(state, plys, maxThreads, repetitions);
+			
+			double singleThreadMillis = 0;
+			for (int threads = 1; threads <= maxThreads; threads++)
+			{
+				double millis = timeSearch(state, plys, threads, repetitions);
+				if (threads == 1)
+				{
+					singleThreadMillis = millis;
+				}
+				report.append(String.format("%8d %12.1f %10.2f%n", threads, millis, singleThreadMillis / millis));
+			}
+		}
+		System.out.println(report);
+	}
+	
+	/**
+	 * Time one turn of the search, taking the best of several runs to reduce noise.
+	 * @return The fastest search time in milliseconds
+	 */
+	private static double timeSearch(State.StateView state, int plys, int threads, int repetitions)
+	{
+		String[] agentArgs = { Integer.toString(plys), "threads=" + threads, "trace=false", "stats=false" };
+		double bestMillis = Double.POSITIVE_INFINITY;
+		
+		for (int i = 0; i < repetitions; i++)
+		{
+			MinimaxAlphaBeta agent = new MinimaxAlphaBeta(0, agentArgs);
+			long start = System.nanoTime();
+			agent.middleStep(state, null);
+			bestMillis = Math.min(bestMillis, (System.nanoTime() - start) / 1e6);
+			agent.terminalStep(state, null);
+		}
+		return bestMillis;
+	}
+}
@@ -0,0 +1,263 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A file of search positions in a compact binary form, written by PositionSnapshotExporter from the
+ * bundled maps and saves.  Loading a position from it builds the GameState directly, without the XML
+ * parsing and StateView that SEPIA needs, so benchmarks and offline tools can start from thousands of
+ * positions in milliseconds.
+ *
+ * Like a PositionTable the file is memory mapped rather than read, and a position is only decoded when
+ * it is asked for.  The layout is a 16 byte header, the offset of every position, then the positions:
+ *
+ * | magic (4) | version (4) | positions (4) | unused (4) |
+ * | offset (4) | ... one per position
+ * | x extent (2) | y extent (2) | footmen (2) | units (2) | blocked cells (8 per 64 cells) | units (20 each) |
+ *
+ * Cell y * xExtent + x is bit (cell & 63) of blocked cell word cell >> 6.  Every unit is
+ *
+ * | id (4) | x (2) | y (2) | hp (2) | base health (2) | basic attack (2) | piercing attack (2) | armor (2) | range (2) |
+ *
+ * with the footmen first and then the archers, the order of GameState's units.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class PositionSnapshot
+{
+	private static final int MAGIC = 0x5350534E;	// "SPSN"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int OFFSET_BYTES = 4;
+	private static final int POSITION_HEADER_BYTES = 8;
+	private static final int BYTES_PER_UNIT = 20;
+
+	private final ByteBuffer buffer;	// The mapped file
+	private final int size;	// The number of positions in the file
+
+	/**
+	 * The map and units of one position, with every per-unit array indexed like GameState's units.
+	 */
+	public static class Position
+	{
+		public final int xExtent;
+		public final int yExtent;
+		public final long[] blockedCells;	// Bitset of the obstacles, see the class comment for the layout
+		public final int numFootmen;	// The number of leading units that are footmen
+		public final int[] unitIds;
+		public final int[] xs;
+		public final int[] ys;
+		public final int[] hps;
+		public final int[] baseHealth;
+		public final int[] basicAttack;
+		public final int[] piercingAttack;
+		public final int[] armor;
+		public final int[] range;
+
+		/**
+		 * Create a position with no obstacles and every unit zeroed, to be filled in.
+		 */
+		public Position(int xExtent, int yExtent, int numFootmen, int numUnits)
+		{
+			this.xExtent = xExtent;
+			this.yExtent = yExtent;
+			this.blockedCells = new long[(xExtent * yExtent + Long.SIZE - 1) / Long.SIZE];
+			this.numFootmen = numFootmen;
+			this.unitIds = new int[numUnits];
+			this.xs = new int[numUnits];
+			this.ys = new int[numUnits];
+			this.hps = new int[numUnits];
+			this.baseHealth = new int[numUnits];
+			this.basicAttack = new int[numUnits];
+			this.piercingAttack = new int[numUnits];
+			this.armor = new int[numUnits];
+			this.range = new int[numUnits];
+		}
+
+		/**
+		 * @return The number of bytes the position takes in a file
+		 */
+		private int getRecordBytes()
+		{
+			return POSITION_HEADER_BYTES + this.blockedCells.length * 8 + this.unitIds.length * BYTES_PER_UNIT;
+		}
+	}
+
+	private PositionSnapshot(ByteBuffer buffer, int size)
+	{
+		this.buffer = buffer;
+		this.size = size;
+	}
+
+	/**
+	 * Map a snapshot file into memory.
+	 * @param fileName A file written by write()
+	 * @return The snapshot
+	 * @throws IOException If the file cannot be read or is not a position snapshot
+	 */
+	public static PositionSnapshot open(String fileName) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try
+		{
+			// The mapping stays valid after the file is closed
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+			{
+				throw new IOException(fileName + " is not a position snapshot");
+			}
+			if (buffer.getInt(4) != VERSION)
+			{
+				throw new IOException(fileName + " is a version " + buffer.getInt(4) + " position snapshot, expected version " + VERSION);
+			}
+
+			int size = buffer.getInt(8);
+			if (size < 0 || buffer.capacity() < HEADER_BYTES + (long) size * OFFSET_BYTES)
+			{
+				throw new IOException(fileName + " is truncated or corrupt");
+			}
+			return new PositionSnapshot(buffer, size);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * @return The number of positions in the snapshot
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Decode a position.
+	 * @param index The position's index in the file, from 0 to size() - 1
+	 * @return The position
+	 */
+	public Position getPosition(int index)
+	{
+		if (index < 0 || index >= this.size)
+		{
+			throw new IndexOutOfBoundsException("Position " + index + " of a snapshot of " + this.size);
+		}
+		int offset = this.buffer.getInt(HEADER_BYTES + index * OFFSET_BYTES);
+
+		Position position = new Position(this.buffer.getShort(offset), this.buffer.getShort(offset + 2),
+				this.buffer.getShort(offset + 4), this.buffer.getShort(offset + 6));
+		offset += POSITION_HEADER_BYTES;
+		for (int word = 0; word < position.blockedCells.length; word++, offset += 8)
+		{
+			position.blockedCells[word] = this.buffer.getLong(offset);
+		}
+		for (int unit = 0; unit < position.unitIds.length; unit++, offset += BYTES_PER_UNIT)
+		{
+			position.unitIds[unit] = this.buffer.getInt(offset);
+			position.xs[unit] = this.buffer.getShort(offset + 4);
+			position.ys[unit] = this.buffer.getShort(offset + 6);
+			position.hps[unit] = this.buffer.getShort(offset + 8);
+			position.baseHealth[unit] = this.buffer.getShort(offset + 10);
+			position.basicAttack[unit] = this.buffer.getShort(offset + 12);
+			position.piercingAttack[unit] = this.buffer.getShort(offset + 14);
+			position.armor[unit] = this.buffer.getShort(offset + 16);
+			position.range[unit] = this.buffer.getShort(offset + 18);
+		}
+		return position;
+	}
+
+	/**
+	 * Build the root game state of a search from a position.
+	 * @param index The position's index in the file, from 0 to size() - 1
+	 * @param evaluator Scores the state and every state below it
+	 * @return The game state, with the footmen to move
+	 */
+	public GameState load(int index, Evaluator evaluator)
+	{
+		return new GameState(getPosition(index), evaluator);
+	}
+
+	/**
+	 * Write a snapshot file, replacing the file if it exists.
+	 * @param fileName The file to write
+	 * @param positions The positions, in the order they are indexed
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void write(String fileName, List<Position> positions) throws IOException
+	{
+		long length = HEADER_BYTES + (long) positions.size() * OFFSET_BYTES;
+		for (Position position : positions)
+		{
+			length += position.getRecordBytes();
+		}
+		if (length > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Too many positions for one snapshot: " + positions.size());
+		}
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		try
+		{
+			file.setLength(0);
+			file.setLength(length);
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, positions.size());
+
+			int offset = HEADER_BYTES + positions.size() * OFFSET_BYTES;
+			for (int index = 0; index < positions.size(); index++)
+			{
+				Position position = positions.get(index);
+				buffer.putInt(HEADER_BYTES + index * OFFSET_BYTES, offset);
+				putShort(buffer, offset, position.xExtent);
+				putShort(buffer, offset + 2, position.yExtent);
+				putShort(buffer, offset + 4, position.numFootmen);
+				putShort(buffer, offset + 6, position.unitIds.length);
+				offset += POSITION_HEADER_BYTES;
+				for (long word : position.blockedCells)
+				{
+					buffer.putLong(offset, word);
+					offset += 8;
+				}
+				for (int unit = 0; unit < position.unitIds.length; unit++, offset += BYTES_PER_UNIT)
+				{
+					buffer.putInt(offset, position.unitIds[unit]);
+					putShort(buffer, offset + 4, position.xs[unit]);
+					putShort(buffer, offset + 6, position.ys[unit]);
+					putShort(buffer, offset + 8, position.hps[unit]);
+					putShort(buffer, offset + 10, position.baseHealth[unit]);
+					putShort(buffer, offset + 12, position.basicAttack[unit]);
+					putShort(buffer, offset + 14, position.piercingAttack[unit]);
+					putShort(buffer, offset + 16, position.armor[unit]);
+					putShort(buffer, offset + 18, position.range[unit]);
+				}
+			}
+			buffer.force();
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Every small field is a 2 byte short, which holds anything a SEPIA map of a sensible size has.
+	 */
+	private static void putShort(ByteBuffer buffer, int offset, int value)
+	{
+		if (value < 0 || value > Short.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("A snapshot cannot hold the value " + value);
+		}
+		buffer.putShort(offset, (short) value);
+	}
+}
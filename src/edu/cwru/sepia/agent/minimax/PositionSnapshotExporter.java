@@ -0,0 +1,72 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exports maps and saves to a PositionSnapshot, one position for each.  Every position is read back
+ * from the written file and checked against the state SEPIA built, so a snapshot loads the same
+ * search positions as the XML it came from.  It then prints how long loading took both ways.
+ *
+ * Usage: PositionSnapshotExporter snapshotFile [scenario ...]
+ * The default scenarios are every data/Game*.xml map plus saves/state0.SRTSsav.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class PositionSnapshotExporter
+{
+	private static final String[] DEFAULT_SCENARIOS = { "data/Game1fv1a.xml", "data/Game2fv2a.xml",
+		"data/Game2fv1a_Obstacles.xml", "data/Game2fv2a_Obstacles.xml", "saves/state0.SRTSsav" };
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: PositionSnapshotExporter snapshotFile [scenario ...]");
+			System.exit(1);
+		}
+		String snapshotFile = args[0];
+		String[] scenarios = DEFAULT_SCENARIOS;
+		if (args.length > 1)
+		{
+			scenarios = new String[args.length - 1];
+			System.arraycopy(args, 1, scenarios, 0, scenarios.length);
+		}
+
+		long start = System.nanoTime();
+		List<GameState> states = new ArrayList<GameState>();
+		List<PositionSnapshot.Position> positions = new ArrayList<PositionSnapshot.Position>();
+		for (String scenario : scenarios)
+		{
+			GameState state = new GameState(ScenarioLoader.loadStateView(scenario));
+			states.add(state);
+			positions.add(state.toPosition());
+		}
+		double xmlMillis = (System.nanoTime() - start) / 1e6;
+		PositionSnapshot.write(snapshotFile, positions);
+
+		start = System.nanoTime();
+		PositionSnapshot snapshot = PositionSnapshot.open(snapshotFile);
+		List<GameState> loaded = new ArrayList<GameState>();
+		for (int index = 0; index < snapshot.size(); index++)
+		{
+			loaded.add(snapshot.load(index, LinearEvaluator.DEFAULT));
+		}
+		double snapshotMillis = (System.nanoTime() - start) / 1e6;
+
+		for (int index = 0; index < states.size(); index++)
+		{
+			GameState expected = states.get(index);
+			GameState actual = loaded.get(index);
+			if (actual.getHashKey() != expected.getHashKey() || actual.getMapKey() != expected.getMapKey()
+					|| Double.compare(actual.getUtility(), expected.getUtility()) != 0)
+			{
+				System.err.println(scenarios[index] + " did not load back from " + snapshotFile + " as the same position");
+				System.exit(1);
+			}
+		}
+		System.out.println(String.format("Wrote %d positions to %s.  Loading them took %.1f ms from XML and %.2f ms from the snapshot.",
+				positions.size(), snapshotFile, xmlMillis, snapshotMillis));
+	}
+}
@@ -0,0 +1,228 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * A read-only table of positions that were searched offline, with the best footman move and the value
+ * found for each.  The table is built by PositionTableBuilder for one map and probed by the agent
+ * before it searches, so a position in the table costs one lookup instead of a search.
+ *
+ * Positions are keyed by GameState.getTableKey(), which counts HP in hits left rather than exact HP,
+ * since SEPIA rolls the damage of every attack and exact HP almost never repeats.
+ *
+ * The file is an open addressing hash table that is memory mapped rather than read, so opening even a
+ * large table is instant and only the pages that are probed are ever loaded.  The layout is a 32 byte
+ * header followed by the slots:
+ *
+ * | magic (4) | version (4) | map key (8) | depth (4) | capacity (4) | entries (4) | unused (4) |
+ * | key (8) | move (4) | value (4) | ... one slot per capacity
+ *
+ * A slot with key 0 is empty.  The capacity is a power of two and at least twice the number of
+ * entries, so a probe looks at one or two slots on average.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class PositionTable
+{
+	private static final int MAGIC = 0x53505442;	// "SPTB"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+	private static final int BYTES_PER_SLOT = 16;
+	private static final int MAX_CAPACITY = 1 << 26;	// Keeps the file under the 2 GB a single mapping can hold
+
+	private final ByteBuffer slots;	// The mapped slots, after the header
+	private final long mapKey;	// The GameState.getMapKey() of the map the table was built for
+	private final int depth;	// The depth every position was searched to
+	private final int indexMask;	// The capacity is a power of two, so the first slot is key & indexMask
+	private final int size;	// The number of positions in the table
+
+	/**
+	 * A reusable holder for the contents of a table slot.
+	 */
+	public static class Entry
+	{
+		public int move;
+		public double value;
+	}
+
+	private PositionTable(ByteBuffer slots, long mapKey, int depth, int capacity, int size)
+	{
+		this.slots = slots;
+		this.mapKey = mapKey;
+		this.depth = depth;
+		this.indexMask = capacity - 1;
+		this.size = size;
+	}
+
+	/**
+	 * Map a table file into memory.
+	 * @param fileName A file written by write()
+	 * @return The table
+	 * @throws IOException If the file cannot be read or is not a position table
+	 */
+	public static PositionTable open(String fileName) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try
+		{
+			// The mapping stays valid after the file is closed
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+			{
+				throw new IOException(fileName + " is not a position table");
+			}
+			if (buffer.getInt(4) != VERSION)
+			{
+				throw new IOException(fileName + " is a version " + buffer.getInt(4) + " position table, expected version " + VERSION);
+			}
+
+			long mapKey = buffer.getLong(8);
+			int depth = buffer.getInt(16);
+			int capacity = buffer.getInt(20);
+			int size = buffer.getInt(24);
+			if (Integer.bitCount(capacity) != 1 || buffer.capacity() != HEADER_BYTES + (long) capacity * BYTES_PER_SLOT)
+			{
+				throw new IOException(fileName + " is truncated or corrupt");
+			}
+
+			buffer.position(HEADER_BYTES);
+			return new PositionTable(buffer.slice(), mapKey, depth, capacity, size);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Look up a position.
+	 * @param key The GameState.getTableKey() of the position
+	 * @param entry Filled in with the stored move and value if the position is in the table
+	 * @return True if the position was found
+	 */
+	public boolean probe(long key, Entry entry)
+	{
+		key = toStoredKey(key);
+		for (int slot = (int) key & this.indexMask; ; slot = (slot + 1) & this.indexMask)
+		{
+			long storedKey = this.slots.getLong(slot * BYTES_PER_SLOT);
+			if (storedKey == 0)
+			{
+				return false;
+			}
+			if (storedKey == key)
+			{
+				entry.move = this.slots.getInt(slot * BYTES_PER_SLOT + 8);
+				entry.value = this.slots.getFloat(slot * BYTES_PER_SLOT + 12);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return The GameState.getMapKey() of the map the table was built for.  Its positions mean nothing on any other map.
+	 */
+	public long getMapKey()
+	{
+		return this.mapKey;
+	}
+
+	/**
+	 * @return The depth in plys every position in the table was searched to
+	 */
+	public int getDepth()
+	{
+		return this.depth;
+	}
+
+	/**
+	 * @return The number of positions in the table
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Write a table file, replacing the file if it exists.
+	 * @param fileName The file to write
+	 * @param mapKey The GameState.getMapKey() of the map the positions are on
+	 * @param depth The depth every position was searched to
+	 * @param entries The best move and value of every position, by GameState.getTableKey()
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void write(String fileName, long mapKey, int depth, Map<Long, Entry> entries) throws IOException
+	{
+		int capacity = Integer.highestOneBit(Math.max(entries.size(), 1)) * 4;
+		if (capacity > MAX_CAPACITY)
+		{
+			throw new IllegalArgumentException("Too many positions for one table: " + entries.size());
+		}
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		try
+		{
+			long length = HEADER_BYTES + (long) capacity * BYTES_PER_SLOT;
+			file.setLength(0);
+			file.setLength(length);
+			MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putLong(8, mapKey);
+			buffer.putInt(16, depth);
+			buffer.putInt(20, capacity);
+			buffer.putInt(24, entries.size());
+
+			// Linear probing, the same walk probe() takes
+			for (Map.Entry<Long, Entry> entry : entries.entrySet())
+			{
+				long key = toStoredKey(entry.getKey());
+				int slot = (int) key & (capacity - 1);
+				while (buffer.getLong(HEADER_BYTES + slot * BYTES_PER_SLOT) != 0)
+				{
+					slot = (slot + 1) & (capacity - 1);
+				}
+
+				int offset = HEADER_BYTES + slot * BYTES_PER_SLOT;
+				buffer.putLong(offset, key);
+				buffer.putInt(offset + 8, entry.getValue().move);
+				buffer.putFloat(offset + 12, (float) entry.getValue().value);
+			}
+			buffer.force();
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Key 0 marks an empty slot, so a position that hashes to 0 is stored under 1.
+	 */
+	private static long toStoredKey(long key)
+	{
+		return key == 0 ? 1 : key;
+	}
+
+	/**
+	 * Fold a value into a table or map key.  The keys are written to files, so unlike hashCode() they
+	 * must come out the same in every JVM.  This is the finalizer of SplitMix64 applied to the running hash.
+	 * @param hash The key so far
+	 * @param value The value to fold in
+	 * @return The new key
+	 */
+	public static long mix(long hash, long value)
+	{
+		long z = hash * 0x9E3779B97F4A7C15L + value;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
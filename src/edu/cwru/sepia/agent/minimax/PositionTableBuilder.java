@@ -0,0 +1,172 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a PositionTable for one map offline.  Every position either side can reach from the start
+ * positions within a number of plys is found by a breadth first walk over the search's own move
+ * generator, and every one of them with the footmen to move is searched to a fixed depth, far deeper
+ * than a turn's time budget would allow.  The best move and value of each go into the table.
+ *
+ * The positions are told apart the way the table keys them, by hits left rather than exact HP, so a
+ * position is only searched once however the damage of the attacks on the way to it was rolled.  The
+ * walk plays the attacks with the search's fixed damage.
+ *
+ * The start positions can be the map itself for an opening table, or saves taken late in a game on the
+ * same map to cover its endgames.  The number of positions grows with the number of units to the power
+ * of the reach, so this is for the small maps with few units, like data/Game1fv1a.xml and
+ * data/Game2fv1a_Obstacles.xml.
+ *
+ * Usage: PositionTableBuilder tableFile [searchPlys] [reachPlys] [maxPositions] [scenario ...]
+ * The defaults are 8 plys deep, 12 plys of reach, at most 100000 positions and data/Game1fv1a.xml.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class PositionTableBuilder
+{
+	private static final String[] DEFAULT_SCENARIOS = { "data/Game1fv1a.xml" };
+
+	private static final long PROGRESS_INTERVAL_NANOS = 10 * 1000000000L;	// How often the search prints its progress
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: PositionTableBuilder tableFile [searchPlys] [reachPlys] [maxPositions] [scenario ...]");
+			System.exit(1);
+		}
+		String tableFile = args[0];
+		int searchPlys = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int reachPlys = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+		int maxPositions = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+		String[] scenarios = DEFAULT_SCENARIOS;
+		if (args.length > 4)
+		{
+			scenarios = new String[args.length - 4];
+			System.arraycopy(args, 4, scenarios, 0, scenarios.length);
+		}
+
+		// Every start must be on the same map, or the table could not tell its positions apart
+		List<GameState> starts = new ArrayList<GameState>();
+		for (String scenario : scenarios)
+		{
+			GameState start = new GameState(ScenarioLoader.loadStateView(scenario));
+			if (!starts.isEmpty() && start.getMapKey() != starts.get(0).getMapKey())
+			{
+				System.err.println(scenario + " is not on the same map as " + scenarios[0]);
+				System.exit(1);
+			}
+			starts.add(start);
+		}
+
+		List<GameState> positions = findPositions(starts, reachPlys, maxPositions);
+		System.out.println(String.format("Found %d positions with the footmen to move within %d plys", positions.size(), reachPlys));
+
+		Map<Long, PositionTable.Entry> entries = searchPositions(positions, searchPlys);
+		PositionTable.write(tableFile, starts.get(0).getMapKey(), searchPlys, entries);
+		System.out.println(String.format("Wrote %d positions searched %d plys deep to %s", entries.size(), searchPlys, tableFile));
+	}
+
+	/**
+	 * Walk out from the start positions one ply at a time, both sides playing every move.
+	 * @param starts The start positions, all with the footmen to move
+	 * @param reachPlys How many plys to walk
+	 * @param maxPositions Stop once this many positions with the footmen to move have been found
+	 * @return Every position found with the footmen to move in which neither side has been wiped out,
+	 * nearest the starts first
+	 */
+	private static List<GameState> findPositions(List<GameState> starts, int reachPlys, int maxPositions)
+	{
+		List<GameState> positions = new ArrayList<GameState>();
+		Set<Long> seen = new HashSet<Long>();
+		List<GameState> frontier = new ArrayList<GameState>();
+		for (GameState start : starts)
+		{
+			if (seen.add(start.getTableKey()))
+			{
+				frontier.add(start);
+			}
+		}
+
+		for (int ply = 0; ply <= reachPlys && !frontier.isEmpty() && positions.size() < maxPositions; ply++)
+		{
+			List<GameState> nextFrontier = new ArrayList<GameState>();
+			for (GameState state : frontier)
+			{
+				if (Double.isInfinite(state.getUtility()))
+				{
+					continue;	// The game is over
+				}
+				if (state.isFootmenToMove())
+				{
+					positions.add(state);
+					if (positions.size() >= maxPositions)
+					{
+						break;
+					}
+				}
+				if (ply == reachPlys)
+				{
+					continue;
+				}
+
+				Iterator<GameStateChild> children = state.getChildIterator();
+				while (children.hasNext())
+				{
+					GameState child = children.next().state;
+					if (seen.add(child.getTableKey()))
+					{
+						nextFrontier.add(child);
+					}
+				}
+			}
+			frontier = nextFrontier;
+		}
+		return positions;
+	}
+
+	/**
+	 * Search every position with one agent, so the transposition table carries over between the
+	 * neighbouring positions.
+	 * @param positions The positions to search
+	 * @param searchPlys The depth to search them to
+	 * @return The best move and value of every position, by table key
+	 */
+	private static Map<Long, PositionTable.Entry> searchPositions(List<GameState> positions, int searchPlys)
+	{
+		MinimaxAlphaBeta agent = new MinimaxAlphaBeta(0, new String[] { Integer.toString(searchPlys), "trace=false", "stats=false", "ttMB=256" });
+		Map<Long, PositionTable.Entry> entries = new LinkedHashMap<Long, PositionTable.Entry>();
+		long start = System.nanoTime();
+		long lastProgress = start;
+
+		for (GameState position : positions)
+		{
+			GameStateChild best = agent.searchPosition(position);
+			if (best.state.getMove() == GameState.NO_MOVE)
+			{
+				continue;	// No move to store
+			}
+
+			PositionTable.Entry entry = new PositionTable.Entry();
+			entry.move = best.state.getMove();
+			entry.value = best.state.getUtility();
+			entries.put(position.getTableKey(), entry);
+
+			if (System.nanoTime() - lastProgress > PROGRESS_INTERVAL_NANOS)
+			{
+				lastProgress = System.nanoTime();
+				double seconds = (lastProgress - start) / 1e9;
+				System.out.println(String.format("  searched %d of %d positions in %.0f s, %.1f ms each",
+						entries.size(), positions.size(), seconds, seconds * 1000 / entries.size()));
+			}
+		}
+		return entries;
+	}
+}
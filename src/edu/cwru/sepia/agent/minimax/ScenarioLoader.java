@@ -0,0 +1,68 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.persistence.StateAdapter;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.util.config.xml.XmlConfiguration;
+
+import java.io.File;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Loads SEPIA states and game configurations outside of a running episode, so searches can be started
+ * from the bundled maps (data/Game*.xml) and saves (saves/*.SRTSsav), and whole games can be run, by
+ * the offline tools in this package.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class ScenarioLoader 
+{
+	private ScenarioLoader() {}
+	
+	/**
+	 * Load a map or save file and return the view of it that the footman player sees.
+	 * @param path The path of an XML map or a .SRTSsav save
+	 * @return The state view for player 0
+	 */
+	public static State.StateView loadStateView(String path) throws JAXBException
+	{
+		return loadState(path).getView(0);
+	}
+	
+	/**
+	 * Load a map or save file.  Both are XML states, so they are read the same way SEPIA reads
+	 * the map of a game configuration.
+	 * @param path The path of an XML map or a .SRTSsav save
+	 * @return The loaded state
+	 */
+	public static State loadState(String path) throws JAXBException
+	{
+		return new StateAdapter().fromXml(loadXmlState(path));
+	}
+	
+	/**
+	 * Load a map or save file without converting it to a state, e.g. to build a state creator that
+	 * starts every episode from it.
+	 * @param path The path of an XML map or a .SRTSsav save
+	 * @return The XML form of the state
+	 */
+	public static XmlState loadXmlState(String path) throws JAXBException
+	{
+		JAXBContext context = JAXBContext.newInstance(XmlState.class);
+		return (XmlState) context.createUnmarshaller().unmarshal(new File(path));
+	}
+	
+	/**
+	 * Load a game configuration (data/GameConfig*.xml), the file SEPIA's Main2 runs.
+	 * @param path The path of the configuration
+	 * @return The map, players and model parameters of the game
+	 */
+	public static XmlConfiguration loadConfiguration(String path) throws JAXBException
+	{
+		JAXBContext context = JAXBContext.newInstance(XmlConfiguration.class);
+		return (XmlConfiguration) context.createUnmarshaller().unmarshal(new File(path));
+	}
+}
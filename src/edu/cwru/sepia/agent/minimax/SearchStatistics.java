@@ -0,0 +1,258 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * Counters kept by one searcher over one turn: nodes visited, evaluations, transposition table hits,
+ * cutoffs at every ply, the branching factor, and the nodes and time of every iteration of the
+ * iterative deepening.  Counting only increments fields, so it is cheap enough to leave on, and the
+ * report is built once per turn by toString().
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class SearchStatistics
+{
+	private final long[] cutoffsPerPly;	// Cutoffs at each distance from the root
+	private final long[] iterationNodes;	// Nodes visited by each iteration, indexed by its depth
+	private final long[] iterationNanos;	// Time taken by each iteration, indexed by its depth
+
+	private long nodes;	// Nodes visited this turn, including transposition table hits and leaves
+	private long evaluations;	// Leaves, quiescence nodes and terminal states whose utility was looked at
+	private long quiescenceNodes;	// Nodes searched past the horizon by the quiescence search
+	private long transpositionHits;	// Probes that found an entry for the state
+	private long expandedNodes;	// Nodes whose children were searched
+	private long childrenSearched;	// Children searched over all expanded nodes
+	private long pvsResearches;	// Children searched again after their null window scout beat alpha
+	private long aspirationResearches;	// Root searches repeated after the value fell outside the aspiration window
+	private boolean predictedRoot;	// The root was the one the last turn's principal variation led to
+
+	private int lastDepth;	// The depth of the last iteration started this turn
+	private boolean lastIterationAborted;	// The last iteration ran out of time
+	private long turnStart;	// System.nanoTime() at the start of the turn
+	private long iterationStart;	// System.nanoTime() at the start of the current iteration
+	private long iterationStartNodes;	// The node count at the start of the current iteration
+
+	/**
+	 * @param maxDepth The deepest iteration that will be searched
+	 * @param maxPly The number of plys from the root to count cutoffs at
+	 */
+	public SearchStatistics(int maxDepth, int maxPly)
+	{
+		this.cutoffsPerPly = new long[maxPly];
+		this.iterationNodes = new long[maxDepth + 1];
+		this.iterationNanos = new long[maxDepth + 1];
+	}
+
+	/**
+	 * Clear every counter at the start of a turn.
+	 */
+	public void startTurn()
+	{
+		startTurn(System.nanoTime());
+	}
+
+	/**
+	 * Clear every counter at the start of a turn that began earlier, so the turn's time includes the
+	 * work done before the search.
+	 * @param turnStart System.nanoTime() when the turn started
+	 */
+	public void startTurn(long turnStart)
+	{
+		Arrays.fill(cutoffsPerPly, 0);
+		Arrays.fill(iterationNodes, 0);
+		Arrays.fill(iterationNanos, 0);
+		nodes = 0;
+		evaluations = 0;
+		quiescenceNodes = 0;
+		transpositionHits = 0;
+		expandedNodes = 0;
+		childrenSearched = 0;
+		pvsResearches = 0;
+		aspirationResearches = 0;
+		predictedRoot = false;
+		lastDepth = 0;
+		lastIterationAborted = false;
+		this.turnStart = turnStart;
+	}
+
+	public void startIteration(int depth)
+	{
+		lastDepth = depth;
+		iterationStart = System.nanoTime();
+		iterationStartNodes = nodes;
+	}
+
+	/**
+	 * @param aborted True if the iteration ran out of time, so its result was thrown away
+	 */
+	public void endIteration(boolean aborted)
+	{
+		iterationNodes[lastDepth] = nodes - iterationStartNodes;
+		iterationNanos[lastDepth] = System.nanoTime() - iterationStart;
+		lastIterationAborted = aborted;
+	}
+
+	/**
+	 * @return The number of nodes visited this turn, including this one
+	 */
+	public long countNode()
+	{
+		return ++nodes;
+	}
+
+	public void countEvaluation()
+	{
+		evaluations++;
+	}
+
+	public void countQuiescenceNode()
+	{
+		quiescenceNodes++;
+	}
+
+	public void countTranspositionHit()
+	{
+		transpositionHits++;
+	}
+
+	/**
+	 * @param children The number of children searched under the node before it was done or cut off
+	 */
+	public void countExpansion(int children)
+	{
+		expandedNodes++;
+		childrenSearched += children;
+	}
+
+	/**
+	 * @param ply The distance from the root of the node that was cut off
+	 */
+	public void countCutoff(int ply)
+	{
+		if (ply < cutoffsPerPly.length)
+		{
+			cutoffsPerPly[ply]++;
+		}
+	}
+
+	public void countPvsResearch()
+	{
+		pvsResearches++;
+	}
+
+	public void countAspirationResearch()
+	{
+		aspirationResearches++;
+	}
+
+	/**
+	 * @param predicted True if the last turn's principal variation predicted this turn's root
+	 */
+	public void setPredictedRoot(boolean predicted)
+	{
+		predictedRoot = predicted;
+	}
+
+	public boolean isPredictedRoot()
+	{
+		return predictedRoot;
+	}
+
+	public long getNodes()
+	{
+		return nodes;
+	}
+
+	public long getEvaluations()
+	{
+		return evaluations;
+	}
+
+	public long getQuiescenceNodes()
+	{
+		return quiescenceNodes;
+	}
+
+	public long getTranspositionHits()
+	{
+		return transpositionHits;
+	}
+
+	public long getPvsResearches()
+	{
+		return pvsResearches;
+	}
+
+	public long getAspirationResearches()
+	{
+		return aspirationResearches;
+	}
+
+	public long getCutoffs(int ply)
+	{
+		return cutoffsPerPly[ply];
+	}
+
+	/**
+	 * @return The deepest iteration that completed this turn
+	 */
+	public int getCompletedDepth()
+	{
+		return lastIterationAborted ? lastDepth - 1 : lastDepth;
+	}
+
+	public long getIterationNodes(int depth)
+	{
+		return iterationNodes[depth];
+	}
+
+	public double getIterationMillis(int depth)
+	{
+		return iterationNanos[depth] / 1e6;
+	}
+
+	/**
+	 * @return The average number of children searched under an expanded node, which alpha-beta keeps
+	 * well below the number of legal moves when the move ordering is good
+	 */
+	public double getBranchingFactor()
+	{
+		return expandedNodes == 0 ? 0 : (double) childrenSearched / expandedNodes;
+	}
+
+	/**
+	 * @return How many times more nodes an iteration took than the one before it, or 0 for the first
+	 */
+	public double getEffectiveBranchingFactor(int depth)
+	{
+		return depth < 2 || iterationNodes[depth - 1] == 0 ? 0 : (double) iterationNodes[depth] / iterationNodes[depth - 1];
+	}
+
+	/**
+	 * @return A report of this turn's search, one line per iteration
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Searched to depth %d in %.1f ms: %d nodes (%d quiescence), %d evaluations, %d transposition hits, branching factor %.2f%n",
+				getCompletedDepth(), (System.nanoTime() - turnStart) / 1e6, nodes, quiescenceNodes, evaluations, transpositionHits, getBranchingFactor()));
+		report.append(String.format("  re-searches: %d principal variation, %d aspiration window%n", pvsResearches, aspirationResearches));
+		report.append(predictedRoot ? "  the last turn's principal variation predicted this root" + String.format("%n") : "");
+
+		for (int depth = 1; depth <= lastDepth; depth++)
+		{
+			report.append(String.format("  depth %d: %d nodes in %.1f ms, effective branching factor %.2f%s%n",
+					depth, iterationNodes[depth], getIterationMillis(depth), getEffectiveBranchingFactor(depth),
+					depth == lastDepth && lastIterationAborted ? " (ran out of time)" : ""));
+		}
+
+		report.append("  cutoffs per ply:");
+		for (int ply = 0; ply < lastDepth && ply < cutoffsPerPly.length; ply++)
+		{
+			report.append(' ').append(cutoffsPerPly[ply]);
+		}
+		return report.toString();
+	}
+}
@@ -0,0 +1,188 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size transposition table for the alpha-beta search.  Entries are keyed by the Zobrist hash
+ * of a game state (see GameState.getHashKey()) and remember the value, depth, bound type and best
+ * move found the last time that state was searched.
+ *
+ * The table is stored in three parallel primitive arrays so it never allocates after it is created.
+ * The stored key is XORed with the value and the packed entry data, so an entry that was only partly
+ * written is rejected by probe() instead of being read back as garbage.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class TranspositionTable 
+{
+	// Bound types
+	public static final int EXACT = 0;	// The stored value is the true value of the state
+	public static final int LOWER_BOUND = 1;	// The search failed high, the true value is at least the stored value
+	public static final int UPPER_BOUND = 2;	// The search failed low, the true value is at most the stored value
+	
+	// Each entry takes three longs
+	private static final int BYTES_PER_ENTRY = 24;
+	
+	// Layout of the packed entry data: | generation (8 bits) | bound (8 bits) | depth (16 bits) | move (32 bits) |
+	private static final int DEPTH_SHIFT = 32;
+	private static final int BOUND_SHIFT = 48;
+	private static final int GENERATION_SHIFT = 56;
+	
+	private final long[] keys;	// The hash of each entry, XORed with its value and data
+	private final long[] values;	// The raw bits of each entry's value
+	private final long[] data;	// The packed depth, bound, generation and move of each entry
+	private final int indexMask;	// The table size is a power of two, so the slot is hash & indexMask
+	private final ReplacementPolicy replacementPolicy;
+	private int generation;	// Incremented for every new search so old entries can be recognised
+	
+	/**
+	 * How an occupied slot is treated when a different state hashes to it.
+	 */
+	public enum ReplacementPolicy
+	{
+		ALWAYS,	// The newest entry always wins
+		DEPTH_PREFERRED,	// Keep the entry that was searched deeper
+		AGED;	// Keep the deeper entry unless it was written by an earlier search
+		
+		/**
+		 * Read a policy from an agent argument, ignoring case.
+		 */
+		public static ReplacementPolicy fromString(String name)
+		{
+			return valueOf(name.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+	
+	/**
+	 * A reusable holder for the contents of a table slot.
+	 */
+	public static class Entry
+	{
+		public double value;
+		public int depth;
+		public int bound;
+		public int move;
+	}
+	
+	/**
+	 * Create a table that fits in the given amount of memory.
+	 * @param megabytes The memory cap for the table
+	 * @param replacementPolicy How collisions are resolved
+	 */
+	public TranspositionTable(int megabytes, ReplacementPolicy replacementPolicy)
+	{
+		long maxEntries = Math.max(1L, (long) megabytes * 1024 * 1024 / BYTES_PER_ENTRY);
+		int size = (int) Long.highestOneBit(Math.min(maxEntries, 1 << 30));
+		
+		this.keys = new long[size];
+		this.values = new long[size];
+		this.data = new long[size];
+		this.indexMask = size - 1;
+		this.replacementPolicy = replacementPolicy;
+	}
+	
+	/**
+	 * Look up a state in the table.
+	 * @param key The Zobrist hash of the state, including the side to move
+	 * @param entry Filled in with the stored entry if there is one
+	 * @return True if the state was found
+	 */
+	public boolean probe(long key, Entry entry)
+	{
+		int slot = (int) key & this.indexMask;
+		long storedData = this.data[slot];
+		long storedValue = this.values[slot];
+		
+		if (storedData == 0 || (this.keys[slot] ^ storedValue ^ storedData) != key)
+		{
+			return false;
+		}
+		
+		entry.value = Double.longBitsToDouble(storedValue);
+		entry.depth = (int) (storedData >>> DEPTH_SHIFT) & 0xFFFF;
+		entry.bound = (int) (storedData >>> BOUND_SHIFT) & 0xFF;
+		entry.move = (int) storedData;
+		return true;
+	}
+	
+	/**
+	 * Store the result of searching a state, subject to the replacement policy.
+	 * @param key The Zobrist hash of the state, including the side to move
+	 * @param value The value found for the state
+	 * @param depth The depth the state was searched to
+	 * @param bound EXACT, LOWER_BOUND or UPPER_BOUND
+	 * @param move The best joint move found from the state
+	 */
+	public void store(long key, double value, int depth, int bound, int move)
+	{
+		int slot = (int) key & this.indexMask;
+		long storedData = this.data[slot];
+		
+		if (storedData != 0 && !shouldReplace(key, slot, storedData, depth))
+		{
+			return;
+		}
+		
+		// The generation byte is never zero, so an empty slot is always recognisable
+		long newData = ((long) (this.generation & 0xFF) + 1) << GENERATION_SHIFT
+				| (long) (bound & 0xFF) << BOUND_SHIFT
+				| (long) (depth & 0xFFFF) << DEPTH_SHIFT
+				| (move & 0xFFFFFFFFL);
+		long newValue = Double.doubleToRawLongBits(value);
+		
+		this.keys[slot] = key ^ newValue ^ newData;
+		this.values[slot] = newValue;
+		this.data[slot] = newData;
+	}
+	
+	/**
+	 * Decide whether a new entry may overwrite an occupied slot.
+	 */
+	private boolean shouldReplace(long key, int slot, long storedData, int depth)
+	{
+		// The same state is always refreshed
+		if ((this.keys[slot] ^ this.values[slot] ^ storedData) == key)
+		{
+			return true;
+		}
+		
+		int storedDepth = (int) (storedData >>> DEPTH_SHIFT) & 0xFFFF;
+		switch (this.replacementPolicy)
+		{
+			case DEPTH_PREFERRED:
+				return depth >= storedDepth;
+			case AGED:
+				int storedGeneration = (int) (storedData >>> GENERATION_SHIFT) & 0xFF;
+				return depth >= storedDepth || storedGeneration != ((this.generation & 0xFF) + 1);
+			default:
+				return true;
+		}
+	}
+	
+	/**
+	 * Mark the start of a new search.  Entries from earlier searches stay usable but become easier to replace.
+	 */
+	public void newSearch()
+	{
+		this.generation = (this.generation + 1) % 255;
+	}
+	
+	/**
+	 * Empty every slot, so the next search starts without any earlier results.
+	 */
+	public void clear()
+	{
+		Arrays.fill(this.keys, 0);
+		Arrays.fill(this.values, 0);
+		Arrays.fill(this.data, 0);
+	}
+	
+	/**
+	 * @return The number of entries the table can hold
+	 */
+	public int getCapacity()
+	{
+		return this.keys.length;
+	}
+}
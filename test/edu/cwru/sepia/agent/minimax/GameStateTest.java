@@ -0,0 +1,122 @@
+package edu.cwru.sepia.agent.minimax;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of the incremental state of GameState.  Generating a child applies its actions to the state in
+ * place and takes them back, and the hash and the distance and HP features are updated along the way,
+ * so every test walks random games on the bundled maps and checks those against a copy.
+ *
+ * @author Tim Sesler
+ * @author Adam Boe
+ */
+public class GameStateTest
+{
+	private static final String[] MAPS = { "data/Game1fv1a.xml", "data/Game2fv2a.xml",
+		"data/Game2fv1a_Obstacles.xml", "data/Game2fv2a_Obstacles.xml" };
+
+	private static final int WALKS_PER_MAP = 10;
+	private static final int PLYS_PER_WALK = 60;
+
+	/**
+	 * Generating every child, every attack and one child on its own makes and unmakes each of their
+	 * moves, and must leave the units, the hash and the features as they were.
+	 */
+	@Test
+	public void generatingChildrenRestoresTheState() throws Exception
+	{
+		for (boolean factored : new boolean[] { false, true })
+		{
+			for (GameState state : walkRandomGames(factored))
+			{
+				GameState copy = state.withUtility(state.getUtility());
+				List<GameStateChild> children = state.getChildren();
+				assertSameState(copy, state);
+
+				if (!state.isMovePending())
+				{
+					Iterator<GameStateChild> attacks = state.getAttackIterator();
+					while (attacks.hasNext())
+					{
+						attacks.next();
+					}
+					assertSameState(copy, state);
+				}
+
+				if (!children.isEmpty())
+				{
+					state.getChild(children.get(children.size() - 1).state.getMove());
+					assertSameState(copy, state);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The hash of a child is updated from its parent's as units move and lose HP, and must be the one
+	 * computed from scratch for the child's units.
+	 */
+	@Test
+	public void incrementalHashMatchesTheHashFromScratch() throws Exception
+	{
+		for (GameState state : walkRandomGames(false))
+		{
+			for (GameStateChild child : state.getChildren())
+			{
+				GameState fromScratch = new GameState(child.state.toPosition(), LinearEvaluator.DEFAULT);
+				assertEquals(fromScratch.getHashKey(), child.state.getHashKey());
+			}
+		}
+	}
+
+	/**
+	 * Check that two states have the same units, hash and features.
+	 */
+	private static void assertSameState(GameState expected, GameState actual)
+	{
+		PositionSnapshot.Position expectedPosition = expected.toPosition();
+		PositionSnapshot.Position actualPosition = actual.toPosition();
+		assertArrayEquals(expectedPosition.xs, actualPosition.xs);
+		assertArrayEquals(expectedPosition.ys, actualPosition.ys);
+		assertArrayEquals(expectedPosition.hps, actualPosition.hps);
+		assertEquals(expected.getHashKey(), actual.getHashKey());
+		for (EvaluationFeature feature : EvaluationFeature.values())
+		{
+			assertEquals(feature.getKey(), expected.getFeature(feature), actual.getFeature(feature), 0);
+		}
+	}
+
+	/**
+	 * Play random moves from the start of every map.
+	 * @param factored Generate the moves in factored mode, see GameState.withMoveGeneration()
+	 * @return Every state the walks went through, the starting states included
+	 */
+	static List<GameState> walkRandomGames(boolean factored) throws Exception
+	{
+		Random random = new Random(1);
+		List<GameState> states = new ArrayList<GameState>();
+		for (String map : MAPS)
+		{
+			GameState start = new GameState(ScenarioLoader.loadStateView(map)).withMoveGeneration(factored, false);
+			for (int walk = 0; walk < WALKS_PER_MAP; walk++)
+			{
+				GameState state = start;
+				for (int ply = 0; ply < PLYS_PER_WALK && !state.isGameOver(); ply++)
+				{
+					states.add(state);
+					List<GameStateChild> children = state.getChildren();
+					state = children.get(random.nextInt(children.size())).state;
+				}
+			}
+		}
+		return states;
+	}
+}